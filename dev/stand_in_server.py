@@ -0,0 +1,106 @@
+"""
+A stand-in for the birdseye server, for testing how the plugin finds out about
+new calls without needing the real server, a database, or any traced code.
+
+It implements just enough of the API:
+
+- POST /api/body_hashes_present/ returns the calls recorded below for the given hashes.
+- GET /api/changes/?since=<version>&timeout=<seconds> is a long poll which responds
+  with {"version": <version>} as soon as the version differs from `since`,
+  or after the timeout if nothing changes.
+
+Calls are "recorded" by a request to the stand-in itself, e.g.
+
+    curl -X POST http://localhost:7778/record/<body hash>
+
+which increments the count for that hash and the version. The hash of a function
+can be found by clicking its eye icon in the IDE with the real server, or by
+printing Utils.hashFunction in a debugger.
+
+To use it, choose "Connect to external server" in the plugin settings with the URL
+http://localhost:7778 (or the port given on the command line).
+Pass --no-changes to behave like the standard birdseye server, which doesn't have
+the changes endpoint. In that case the plugin should fall back to asking
+body_hashes_present about new or edited functions every 2 seconds, and about
+all the functions in open editors every 30 seconds.
+
+Requires Python 3.7+ and nothing else.
+"""
+
+import argparse
+import json
+import threading
+from collections import Counter
+from http.server import BaseHTTPRequestHandler, ThreadingHTTPServer
+from urllib.parse import urlparse, parse_qs
+
+counts = Counter()
+version = 0
+condition = threading.Condition()
+
+
+class Handler(BaseHTTPRequestHandler):
+    protocol_version = 'HTTP/1.1'  # keep-alive, like the real server
+    supports_changes = True
+
+    def send_json(self, data, status=200):
+        body = json.dumps(data).encode('utf8')
+        self.send_response(status)
+        self.send_header('Content-Type', 'application/json')
+        self.send_header('Content-Length', str(len(body)))
+        self.end_headers()
+        self.wfile.write(body)
+
+    def read_json(self):
+        length = int(self.headers.get('Content-Length', 0))
+        return json.loads(self.rfile.read(length) or b'null')
+
+    def do_GET(self):
+        url = urlparse(self.path)
+        if url.path == '/api/changes/' and self.supports_changes:
+            query = parse_qs(url.query)
+            since = int(query.get('since', ['-1'])[0])
+            timeout = float(query.get('timeout', ['25'])[0])
+            with condition:
+                condition.wait_for(lambda: version != since, timeout)
+                current = version
+            self.send_json({'version': current})
+        else:
+            self.send_json({'error': 'not found'}, 404)
+
+    def do_POST(self):
+        global version
+        url = urlparse(self.path)
+        if url.path == '/api/body_hashes_present/':
+            hashes = self.read_json()
+            with condition:
+                result = [dict(hash=h, count=counts[h]) for h in hashes if counts[h]]
+            self.send_json(result)
+        elif url.path.startswith('/record/'):
+            self.read_json()
+            body_hash = url.path[len('/record/'):]
+            with condition:
+                counts[body_hash] += 1
+                version += 1
+                condition.notify_all()
+                result = dict(hash=body_hash, count=counts[body_hash], version=version)
+            self.send_json(result)
+        else:
+            self.send_json({'error': 'not found'}, 404)
+
+
+def main():
+    parser = argparse.ArgumentParser(description=__doc__.strip().splitlines()[0])
+    parser.add_argument('--port', type=int, default=7778)
+    parser.add_argument('--no-changes', action='store_true',
+                        help='respond 404 to /api/changes/ like an older server')
+    args = parser.parse_args()
+    Handler.supports_changes = not args.no_changes
+    server = ThreadingHTTPServer(('localhost', args.port), Handler)
+    server.daemon_threads = True
+    print('Stand-in birdseye server at http://localhost:%s' % args.port)
+    server.serve_forever()
+
+
+if __name__ == '__main__':
+    main()
@@ -1,25 +1,250 @@
 package com.github.alexmojaki.birdseye.pycharm;
 
+import com.google.common.collect.EvictingQueue;
+import com.google.common.io.CountingInputStream;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
-import org.apache.http.client.fluent.Request;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
-import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
 
 import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
 
 class ApiClient {
+
+    /**
+     * Runs the requests made by the async API methods, so that the UI thread never waits
+     * for the server. Shared by all projects.
+     */
+    private static final ExecutorService EXECUTOR =
+            AppExecutorUtil.createBoundedApplicationPoolExecutor("birdseye API", 4);
+
     private final MyProjectComponent projectComponent;
-    private boolean inError = false;
+    // Only suppresses repeated notifications, see notifyError()
+    private volatile boolean inError = false;
+
+    // Stops requests while the server is unreachable, see execute()
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile boolean closed = false;
+
+    // Together these show how often requests reuse a kept-alive connection
+    // instead of opening a new one. See connectionStats().
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+
+    private final PoolingHttpClientConnectionManager connectionManager =
+            new PoolingHttpClientConnectionManager((route, config) -> {
+                connectionsOpened.incrementAndGet();
+                return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+            });
+
+    /**
+     * Shared by all requests to the server so that connections are kept alive
+     * and reused, particularly by the frequent polling in MyProjectComponent.checkHashes.
+     */
+    private final CloseableHttpClient httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .evictIdleConnections(30, TimeUnit.SECONDS)
+            // Compression is handled in request() so that bytes can be counted
+            // before and after decompression
+            .disableContentCompression()
+            .build();
+
+    /**
+     * The sizes of a single response body, as sent over the network and after decompression.
+     */
+    static class Transfer {
+        final String path;
+        final long compressedBytes;
+        final long uncompressedBytes;
+
+        Transfer(String path, long compressedBytes, long uncompressedBytes) {
+            this.path = path;
+            this.compressedBytes = compressedBytes;
+            this.uncompressedBytes = uncompressedBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s received, %s decompressed",
+                    path,
+                    StringUtil.formatFileSize(compressedBytes),
+                    StringUtil.formatFileSize(uncompressedBytes));
+        }
+    }
+
+    // Only the most recent transfers are kept, see transfers()
+    private final EvictingQueue<Transfer> recentTransfers = EvictingQueue.create(20);
+    private final AtomicLong totalCompressedBytes = new AtomicLong();
+    private final AtomicLong totalUncompressedBytes = new AtomicLong();
 
     ApiClient(MyProjectComponent projectComponent) {
         this.projectComponent = projectComponent;
+        applySettings();
+    }
+
+    /**
+     * Updates the connection pool to match the current settings.
+     * Timeouts are read from the settings for each request.
+     */
+    void applySettings() {
+        int perRoute = Math.max(1, state().maxConnectionsPerRoute);
+        connectionManager.setDefaultMaxPerRoute(perRoute);
+        connectionManager.setMaxTotal(Math.max(20, perRoute));
+    }
+
+    /**
+     * Closes all pooled connections. The client can't be used afterwards.
+     */
+    void close() {
+        closed = true;
+        try {
+            httpClient.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private RequestConfig requestConfig() {
+        return RequestConfig.custom()
+                .setConnectTimeout(state().connectTimeoutMillis)
+                .setConnectionRequestTimeout(state().connectTimeoutMillis)
+                .setSocketTimeout(state().readTimeoutMillis)
+                .build();
+    }
+
+    /**
+     * A snapshot of how the connection pool is being used, shown in the settings dialog.
+     */
+    static class ConnectionStats {
+        final long requests;
+        final long connectionsOpened;
+        final int leased;
+        final int available;
+
+        ConnectionStats(long requests, long connectionsOpened, PoolStats poolStats) {
+            this.requests = requests;
+            this.connectionsOpened = connectionsOpened;
+            this.leased = poolStats.getLeased();
+            this.available = poolStats.getAvailable();
+        }
+
+        /**
+         * The fraction of requests which didn't need to open a new connection.
+         */
+        double reuseRate() {
+            if (requests == 0) {
+                return 0;
+            }
+            return Math.max(0, 1 - (double) connectionsOpened / requests);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%d requests over %d connections (%.0f%% reused), %d in use, %d idle",
+                    requests, connectionsOpened, reuseRate() * 100, leased, available);
+        }
+    }
+
+    /**
+     * Returns the most recent transfers, latest first.
+     */
+    List<Transfer> recentTransfers() {
+        List<Transfer> result;
+        synchronized (recentTransfers) {
+            result = new ArrayList<>(recentTransfers);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Summarises the bytes received for all requests so far, shown in the settings dialog.
+     */
+    String transferStats() {
+        long compressed = totalCompressedBytes.get();
+        long uncompressed = totalUncompressedBytes.get();
+        return String.format("%s received, %s decompressed (%.1fx)",
+                StringUtil.formatFileSize(compressed),
+                StringUtil.formatFileSize(uncompressed),
+                compressed == 0 ? 1.0 : (double) uncompressed / compressed);
+    }
+
+    private void recordTransfer(Transfer transfer) {
+        totalCompressedBytes.addAndGet(transfer.compressedBytes);
+        totalUncompressedBytes.addAndGet(transfer.uncompressedBytes);
+        synchronized (recentTransfers) {
+            recentTransfers.add(transfer);
+        }
+    }
+
+    /**
+     * Wraps the raw response body in a stream which decompresses it
+     * according to the Content-Encoding header.
+     */
+    private static InputStream decompress(InputStream stream, @Nullable Header contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return stream;
+        }
+        switch (contentEncoding.getValue().trim().toLowerCase()) {
+            case "gzip":
+            case "x-gzip":
+                return new GZIPInputStream(stream, 8192);
+            case "deflate":
+                return new DeflateInputStream(stream);
+            default:
+                return stream;
+        }
+    }
+
+    ConnectionStats connectionStats() {
+        return new ConnectionStats(
+                requestCount.get(),
+                connectionsOpened.get(),
+                connectionManager.getTotalStats());
     }
 
     /**
@@ -37,18 +262,172 @@ class ApiClient {
         return projectComponent.state;
     }
 
+    /**
+     * Reads the body of a successful response into some type.
+     */
+    interface Decoder<T> {
+        T decode(Reader reader) throws IOException;
+    }
+
     /**
      * Executes an HTTP request, notifies the user if there are errors,
      * and parses the JSON response into an instance of the response class
      * which is returned. Returns null if there is an error.
      */
-    private <T> T request(Request request, Class<T> responseClass) {
+    private <T> T request(HttpRequestBase request, Class<T> responseClass) {
+        return request(request, reader -> GSON.fromJson(reader, responseClass));
+    }
+
+    /**
+     * Like the above, but the response body is streamed into the given decoder
+     * instead of being parsed by Gson into a class.
+     */
+    private <T> T request(HttpRequestBase request, Decoder<T> decoder) {
+        return execute(request, (response, reader) -> decoder.decode(notNull(reader)));
+    }
+
+    /**
+     * Like Decoder, but also given the response so that headers can be read.
+     * The reader is null if the response is 304 Not Modified, which can only
+     * happen if the request was made conditional, see CallsListCache,
+     * or 404 Not Found for an optional endpoint, see execute().
+     */
+    interface ResponseDecoder<T> {
+        T decode(HttpResponse response, @Nullable Reader reader) throws IOException;
+    }
+
+    /**
+     * The most general form of request() above.
+     */
+    private <T> T execute(HttpRequestBase request, ResponseDecoder<T> decoder) {
+        return execute(request, decoder, false);
+    }
+
+    /**
+     * If optionalEndpoint is true, a 404 response is passed to the decoder with a null
+     * reader instead of being reported as an error, for endpoints which older versions
+     * of the server don't have.
+     * <p>
+     * Returns null without making the request if the circuit breaker is open.
+     * GET requests are retried a few times if the server can't be reached
+     * or fails with a 5xx error.
+     */
+    private <T> T execute(HttpRequestBase request, ResponseDecoder<T> decoder, boolean optionalEndpoint) {
+        if (!circuitBreaker.allowRequest()) {
+            return null;
+        }
+        if (request.getConfig() == null) {
+            request.setConfig(requestConfig());
+        }
+        request.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+
+        // Only GETs are safe to send again, even though the only POST
+        // (body_hashes_present) doesn't change anything either
+        boolean idempotent = request instanceof HttpGet;
+
+        boolean recorded = false;
         try {
-            HttpResponse response = request.execute().returnResponse();
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    T result = executeOnce(request, decoder, optionalEndpoint);
+                    circuitBreaker.recordSuccess();
+                    recorded = true;
+                    return result;
+                } catch (IOException e) {
+                    // An aborted request was cancelled intentionally, see async(),
+                    // and requests fail when the client is closed with the project
+                    if (request.isAborted() || closed) {
+                        return null;
+                    }
+                    circuitBreaker.recordFailure();
+                    recorded = true;
+                    if (idempotent
+                            && attempt < MAX_RETRIES
+                            && circuitBreaker.status() == CircuitBreaker.Status.CLOSED
+                            && sleepBeforeRetry(attempt)
+                            && !request.isAborted()) {
+                        // The breaker needs to hear about each attempt, and isn't asked again
+                        // because it's still closed
+                        recorded = false;
+                        continue;
+                    }
+                    notifyError(e.getMessage());
+                    return null;
+                }
+            }
+        } finally {
+            if (!recorded) {
+                circuitBreaker.recordAbandoned();
+            }
+        }
+    }
+
+    private static final int MAX_RETRIES = 2;
+    private static final long RETRY_BASE_MILLIS = 250;
+
+    /**
+     * Waits a random time before retrying a request, up to twice as long
+     * for each attempt so far. Randomness prevents several failed requests
+     * from all retrying at the same moment. Returns false if interrupted.
+     */
+    private static boolean sleepBeforeRetry(int attempt) {
+        long maxDelay = RETRY_BASE_MILLIS << attempt;
+        try {
+            Thread.sleep(maxDelay / 2 + ThreadLocalRandom.current().nextLong(maxDelay / 2 + 1));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Thrown for 5xx responses, which are treated like network failures.
+     */
+    private static class ServerErrorException extends IOException {
+        ServerErrorException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown when the body of a response can't be decoded. Since it's streamed,
+     * this usually means the connection failed partway through, e.g. Gson wraps
+     * the IOException in a JsonIOException, so it's treated like a network failure.
+     * A truncated body can also make the decoders find an unexpected token,
+     * which JsonReader reports with an IllegalStateException.
+     */
+    private static class InvalidResponseException extends IOException {
+        InvalidResponseException(RuntimeException cause) {
+            super("Invalid response from the server: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * A single attempt at executing a request. Network failures and server errors
+     * are thrown, other errors are reported here and return null.
+     */
+    private <T> T executeOnce(HttpRequestBase request,
+                              ResponseDecoder<T> decoder,
+                              boolean optionalEndpoint) throws IOException {
+        requestCount.incrementAndGet();
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
             int statusCode = response.getStatusLine().getStatusCode();
 
+            if (statusCode == 304 || (statusCode == 404 && optionalEndpoint)) {
+                EntityUtils.consume(response.getEntity());
+                inError = false;
+                return decoder.decode(response, null);
+            }
+
             if (statusCode != 200) {
+                // Read the rest of the response so that the connection can be reused
+                EntityUtils.consume(response.getEntity());
+
                 String message = "Request returned response with code " + statusCode + ".";
+                if (statusCode >= 500) {
+                    throw new ServerErrorException(message);
+                }
                 if (statusCode == 404
                         // If we're running the server, the process monitor should be able
                         // to offer an upgrade.
@@ -63,13 +442,206 @@ class ApiClient {
                 notifyError(message);
                 return null;
             }
-            String content = EntityUtils.toString(response.getEntity());
-            T result = GSON.fromJson(content, responseClass);
+            HttpEntity entity = response.getEntity();
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            CountingInputStream compressed = new CountingInputStream(entity.getContent());
+            T result;
+            long uncompressedBytes;
+            try (CountingInputStream uncompressed = new CountingInputStream(
+                    decompress(compressed, entity.getContentEncoding()));
+                 Reader reader = new InputStreamReader(
+                         uncompressed,
+                         charset == null ? StandardCharsets.UTF_8 : charset)) {
+                try {
+                    result = decoder.decode(response, reader);
+                } catch (JsonParseException | IllegalStateException e) {
+                    throw new InvalidResponseException(e);
+                }
+                uncompressedBytes = uncompressed.getCount();
+            }
+            recordTransfer(new Transfer(
+                    request.getURI().getPath(),
+                    compressed.getCount(),
+                    uncompressedBytes));
             inError = false;
             return result;
-        } catch (IOException e) {
-            notifyError(e.getMessage());
-            return null;
+        }
+    }
+
+    /**
+     * Describes whether requests are currently going through, for the settings dialog.
+     */
+    String circuitBreakerStatus() {
+        return circuitBreaker.toString();
+    }
+
+    // Requests currently being executed, keyed by requestKey(), so that identical
+    // requests made at the same time (e.g. a double click on a row in the calls table)
+    // share a single response. See async() and sync().
+    private final Map<String, InFlight<?>> inFlight = new HashMap<>();
+
+    // The number of requests which were never sent because an identical one was in progress
+    private final AtomicLong deduplicatedCount = new AtomicLong();
+
+    long deduplicatedCount() {
+        return deduplicatedCount.get();
+    }
+
+    /**
+     * A request in progress, along with everyone waiting for its result.
+     */
+    private class InFlight<T> {
+        final String key;
+        final HttpRequestBase request;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        // Guarded by inFlight
+        private int waiters = 0;
+
+        InFlight(String key, HttpRequestBase request) {
+            this.key = key;
+            this.request = request;
+            result.whenComplete((r, e) -> {
+                synchronized (inFlight) {
+                    inFlight.remove(key, this);
+                }
+                if (result.isCancelled()) {
+                    request.abort();
+                }
+            });
+        }
+
+        /**
+         * Returns a future for one caller which completes with the shared result.
+         * Cancelling it only cancels the request itself if no one else is still waiting.
+         * Must be called while holding the lock on inFlight.
+         */
+        CompletableFuture<T> waiter() {
+            waiters++;
+            CompletableFuture<T> future = new CompletableFuture<>();
+            result.whenComplete((r, e) -> {
+                if (e == null) {
+                    future.complete(r);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            });
+            future.whenComplete((r, e) -> {
+                if (future.isCancelled()) {
+                    synchronized (inFlight) {
+                        waiters--;
+                        if (waiters > 0) {
+                            return;
+                        }
+                    }
+                    result.cancel(false);
+                }
+            });
+            return future;
+        }
+
+        void run(Supplier<T> supplier) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                result.complete(supplier.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Identifies requests that would certainly get the same response.
+     */
+    private static String requestKey(HttpRequestBase request) {
+        String key = request.getMethod() + " " + request.getURI();
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            try {
+                // Bodies are always small StringEntities which can be read repeatedly
+                key += "\n" + EntityUtils.toString(entity);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Returns the in-flight request with the same key as this request if there is one,
+     * in which case the new request is counted as deduplicated and won't be sent.
+     * Otherwise returns null. Must be called while holding the lock on inFlight.
+     */
+    @Nullable
+    private <T> InFlight<T> existing(String key) {
+        @SuppressWarnings("unchecked")
+        InFlight<T> flight = (InFlight<T>) inFlight.get(key);
+        if (flight != null) {
+            deduplicatedCount.incrementAndGet();
+        }
+        return flight;
+    }
+
+    /**
+     * Runs the supplier, which should execute the given request, on the plugin's executor,
+     * unless an identical request is already in progress, in which case its result is shared.
+     * Cancelling the returned future aborts the request, even if the response is
+     * already being downloaded, once everyone sharing it has cancelled.
+     */
+    private <T> CompletableFuture<T> async(HttpRequestBase request, Supplier<T> supplier) {
+        String key = requestKey(request);
+        InFlight<T> flight;
+        CompletableFuture<T> result;
+        synchronized (inFlight) {
+            InFlight<T> existing = existing(key);
+            if (existing != null) {
+                return existing.waiter();
+            }
+            flight = new InFlight<>(key, request);
+            inFlight.put(key, flight);
+            result = flight.waiter();
+        }
+        Future<?> task = EXECUTOR.submit(() -> flight.run(supplier));
+        flight.result.whenComplete((r, e) -> {
+            if (flight.result.isCancelled()) {
+                task.cancel(false);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Like async(), but runs the supplier on the current thread and waits for the result.
+     * Concurrent async and sync calls can still share the request.
+     */
+    private <T> T sync(HttpRequestBase request, Supplier<T> supplier) {
+        String key = requestKey(request);
+        InFlight<T> flight = null;
+        CompletableFuture<T> waiter = null;
+        synchronized (inFlight) {
+            InFlight<T> existing = existing(key);
+            if (existing != null) {
+                waiter = existing.waiter();
+            } else {
+                flight = new InFlight<>(key, request);
+                inFlight.put(key, flight);
+
+                // This thread is waiting too, so others cancelling mustn't abort the request
+                flight.waiters++;
+            }
+        }
+        if (waiter != null) {
+            return waiter.join();
+        }
+        try {
+            T result = supplier.get();
+            flight.result.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.result.completeExceptionally(e);
+            throw e;
         }
     }
 
@@ -97,24 +669,19 @@ class ApiClient {
         inError = true;
     }
 
-    // Convenience methods for GET and POST HTTP requests
-
-    private <T> T get(String path, Class<T> responseClass) {
-        Request request = Request.Get(url(path));
-        return request(request, responseClass);
-    }
-
-    @SuppressWarnings("SameParameterValue")
-    private <T> T post(String path, Object body, Class<T> responseClass) {
-        Request request = Request.Post(url(path))
-                .bodyString(GSON.toJson(body), ContentType.APPLICATION_JSON);
-        return request(request, responseClass);
+    private HttpPost postRequest(String path, Object body) {
+        HttpPost request = new HttpPost(url(path));
+        request.setEntity(new StringEntity(GSON.toJson(body), ContentType.APPLICATION_JSON));
+        return request;
     }
 
     // The actual API methods.
     // The little static classes are used by Gson to parse the JSON responses.
     // Since they defer to the request() method, some will return null
-    // in case of an error.
+    // (or futures which complete with null) in case of an error.
+    // getCallAsync and listCallsByBodyHashAsync, used from the UI, don't block
+    // the calling thread and can be cancelled. waitForChanges and getBodyHashesPresent
+    // block and are called from background threads, see MyProjectComponent.
 
     static class CallResponse {
         /*
@@ -151,8 +718,51 @@ class ApiClient {
         Function function;
     }
 
-    @Nullable CallResponse getCall(String callId) {
-        return get("call/" + callId, CallResponse.class);
+    // Calls can be very large, so rather than letting Gson parse them,
+    // they are streamed straight into the final data structures by CallDecoder.
+    // Calls never change, so they're also stored in the CallCache on the way,
+    // and the cache is checked before asking the server.
+
+    CompletableFuture<CallResponse> getCallAsync(String callId) {
+        HttpGet request = new HttpGet(url("call/" + callId));
+        return async(request, () -> getCall(callId, request));
+    }
+
+    @Nullable
+    private CallResponse getCall(String callId, HttpGet request) {
+        String cacheKey = callCacheKey(callId);
+        CallResponse cached = CallCache.INSTANCE.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        return request(request, reader -> {
+            JsonReader jsonReader = new JsonReader(reader);
+            CallCache.Writer writer;
+            try {
+                writer = CallCache.INSTANCE.writer(cacheKey, jsonReader);
+            } catch (IOException e) {
+                // Not being able to cache the call is no reason not to show it
+                return CallDecoder.decode(jsonReader);
+            }
+            try (CallCache.Writer w = writer) {
+                CallResponse response = CallDecoder.decode(w.reader());
+                try {
+                    w.commit(state().callCacheSizeMb * 1024L * 1024L);
+                } catch (IOException ignored) {
+                    // The call was received fine, it just couldn't be cached,
+                    // e.g. the disk is full. Closing the writer discards what was written.
+                }
+                return response;
+            }
+        });
+    }
+
+    /**
+     * Different servers and databases can have calls with the same ID,
+     * so they're part of the key.
+     */
+    private String callCacheKey(String callId) {
+        return url("call/" + callId) + "\n" + (state().runServer ? state().dbUrl : "");
     }
 
     static class CallsByHashResponse {
@@ -165,8 +775,57 @@ class ApiClient {
         List<Range> loop_ranges;
     }
 
-    @Nullable CallsByHashResponse listCallsByBodyHash(String hash) {
-        return get("calls_by_body_hash/" + hash, CallsByHashResponse.class);
+    // Listings are cached and only requested again when they may have changed
+
+    private final CallsListCache callsListCache = new CallsListCache();
+
+    CompletableFuture<CallsByHashResponse> listCallsByBodyHashAsync(String hash) {
+        CallsByHashResponse cached = callsListCache.getFresh(hash, projectComponent.hashCountsCurrent(hash));
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        HttpGet request = new HttpGet(url("calls_by_body_hash/" + hash));
+        CallsListCache.Entry previous = callsListCache.addValidators(hash, request);
+        return async(request, () -> execute(request, (response, reader) ->
+                callsListCache.update(hash, previous, response, reader)));
+    }
+
+    static class ChangesResponse {
+        // Changes whenever calls are added to the database
+        long version;
+
+        // False if the server is too old to have the changes endpoint,
+        // in which case the caller has to fall back to polling
+        transient boolean supported = true;
+    }
+
+    // How long the server holds on to a request to changes/ before
+    // responding that nothing has changed. The read timeout must be longer.
+    private static final int CHANGES_WAIT_SECONDS = 25;
+
+    /**
+     * Waits until the database has changed since the given version, or up to
+     * CHANGES_WAIT_SECONDS, and returns the current version. Passing a version
+     * that the server hasn't reported (e.g. -1) returns immediately.
+     * This is a long poll, so it should be called from a dedicated thread
+     * rather than the API executor. See MyProjectComponent.watchForChanges.
+     */
+    @Nullable ChangesResponse waitForChanges(long since) {
+        HttpGet request = new HttpGet(url(String.format(
+                "changes/?since=%d&timeout=%d", since, CHANGES_WAIT_SECONDS)));
+        request.setConfig(RequestConfig.copy(requestConfig())
+                .setSocketTimeout(Math.max(
+                        state().readTimeoutMillis,
+                        (CHANGES_WAIT_SECONDS + 10) * 1000))
+                .build());
+        return execute(request, (response, reader) -> {
+            if (reader == null) {
+                ChangesResponse unsupported = new ChangesResponse();
+                unsupported.supported = false;
+                return unsupported;
+            }
+            return GSON.fromJson(reader, ChangesResponse.class);
+        }, true);
     }
 
     static class HashPresentItem {
@@ -177,17 +836,22 @@ class ApiClient {
     /**
      * Given a collection of hashes of function bodies, returns a HashPresentItem
      * for each of those hashes present in the birdseye database, with a count of
-     * the number of calls to that function.
+     * the number of calls to that function. Returns null if there is an error,
+     * so that callers can tell it apart from none of the hashes being present.
      */
-    @NotNull HashPresentItem[] getBodyHashesPresent(Collection<String> hashes) {
+    @Nullable HashPresentItem[] getBodyHashesPresent(Collection<String> hashes) {
         if (hashes.isEmpty()) {
             return new HashPresentItem[]{};
         }
-        HashPresentItem[] hashArray = post("body_hashes_present/", hashes, HashPresentItem[].class);
-        if (hashArray == null) {  // error check
-            return new HashPresentItem[]{};
-        }
-        return hashArray;
+        // Sorted so that the same hashes always make the same request body, see requestKey()
+        HttpPost request = postRequest("body_hashes_present/", new TreeSet<>(hashes));
+        return sync(request, () -> {
+            HashPresentItem[] hashArray = request(request, HashPresentItem[].class);
+            if (hashArray != null) {
+                callsListCache.updateCounts(hashArray);
+            }
+            return hashArray;
+        });
     }
 
 }
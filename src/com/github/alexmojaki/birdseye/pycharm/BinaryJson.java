@@ -0,0 +1,444 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of a stream of JSON tokens, used by CallCache to store calls on disk.
+ * <p>
+ * Each token is a single tag byte, followed by its value if it has one. Integers are
+ * variable length, so small numbers such as type indices take a single byte.
+ * Strings (names and values) are stored in full only the first time they appear,
+ * and afterwards as a reference to that first occurrence, which matters because
+ * calls repeat the same names and reprs over and over.
+ * <p>
+ * Encoding happens by reading JSON through a RecordingReader, so that only the tokens
+ * actually consumed are stored. Decoding is done by a Reader, which is a JsonReader
+ * so that the same code (CallDecoder) can read JSON from the server or from the cache.
+ * Code reading through these classes must only use the public methods of JsonReader,
+ * which excludes Gson's adapters for maps.
+ */
+class BinaryJson {
+
+    private static final int MAGIC = 0xB1_4D_5E_01;
+
+    private static final byte BEGIN_ARRAY = 1;
+    private static final byte END_ARRAY = 2;
+    private static final byte BEGIN_OBJECT = 3;
+    private static final byte END_OBJECT = 4;
+    private static final byte NAME = 5;
+    private static final byte STRING = 6;
+    private static final byte NUMBER = 7;  // a number which was read as a string
+    private static final byte INT = 8;
+    private static final byte LONG = 9;
+    private static final byte DOUBLE = 10;
+    private static final byte TRUE = 11;
+    private static final byte FALSE = 12;
+    private static final byte NULL = 13;
+
+    private BinaryJson() {
+    }
+
+    /**
+     * Passes through all tokens read from a JsonReader, writing them to a stream in the binary encoding.
+     * Skipped values are stored as null.
+     */
+    static class RecordingReader extends JsonReader {
+        private final JsonReader delegate;
+        private final DataOutputStream out;
+        private final Map<String, Integer> stringIds = new HashMap<>();
+
+        RecordingReader(JsonReader delegate, OutputStream out) throws IOException {
+            super(new StringReader(""));
+            this.delegate = delegate;
+            this.out = new DataOutputStream(new BufferedOutputStream(out));
+            this.out.writeInt(MAGIC);
+        }
+
+        /**
+         * Writes any buffered output and closes the output stream.
+         * Must be called after reading everything that should be recorded.
+         */
+        void closeOutput() throws IOException {
+            out.close();
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            // Zigzag encoding so that small negative numbers are also small
+            int v = (value << 1) ^ (value >> 31);
+            while ((v & ~0x7F) != 0) {
+                out.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte(v);
+        }
+
+        private void writeString(byte tag, String s) throws IOException {
+            out.writeByte(tag);
+            Integer id = stringIds.get(s);
+            if (id != null) {
+                writeVarInt(id + 1);
+                return;
+            }
+            stringIds.put(s, stringIds.size());
+            writeVarInt(0);
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public void beginArray() throws IOException {
+            delegate.beginArray();
+            out.writeByte(BEGIN_ARRAY);
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            delegate.endArray();
+            out.writeByte(END_ARRAY);
+        }
+
+        @Override
+        public void beginObject() throws IOException {
+            delegate.beginObject();
+            out.writeByte(BEGIN_OBJECT);
+        }
+
+        @Override
+        public void endObject() throws IOException {
+            delegate.endObject();
+            out.writeByte(END_OBJECT);
+        }
+
+        @Override
+        public boolean hasNext() throws IOException {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public JsonToken peek() throws IOException {
+            return delegate.peek();
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            String name = delegate.nextName();
+            writeString(NAME, name);
+            return name;
+        }
+
+        @Override
+        public String nextString() throws IOException {
+            boolean number = delegate.peek() == JsonToken.NUMBER;
+            String s = delegate.nextString();
+            writeString(number ? NUMBER : STRING, s);
+            return s;
+        }
+
+        @Override
+        public boolean nextBoolean() throws IOException {
+            boolean b = delegate.nextBoolean();
+            out.writeByte(b ? TRUE : FALSE);
+            return b;
+        }
+
+        @Override
+        public void nextNull() throws IOException {
+            delegate.nextNull();
+            out.writeByte(NULL);
+        }
+
+        @Override
+        public double nextDouble() throws IOException {
+            double d = delegate.nextDouble();
+            out.writeByte(DOUBLE);
+            out.writeDouble(d);
+            return d;
+        }
+
+        @Override
+        public long nextLong() throws IOException {
+            long l = delegate.nextLong();
+            out.writeByte(LONG);
+            out.writeLong(l);
+            return l;
+        }
+
+        @Override
+        public int nextInt() throws IOException {
+            int i = delegate.nextInt();
+            out.writeByte(INT);
+            writeVarInt(i);
+            return i;
+        }
+
+        @Override
+        public void skipValue() throws IOException {
+            if (delegate.peek() == JsonToken.NAME) {
+                // Skipping a name is the same as reading it,
+                // and the value that follows will still need it
+                nextName();
+                return;
+            }
+            delegate.skipValue();
+            out.writeByte(NULL);
+        }
+
+        @Override
+        public String getPath() {
+            return delegate.getPath();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public String toString() {
+            return "BinaryJson.RecordingReader(" + delegate + ")";
+        }
+    }
+
+    /**
+     * Reads the tokens written by a RecordingReader from a buffer,
+     * which for the cache is a memory mapped file.
+     */
+    static class Reader extends JsonReader {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(ByteBuffer buffer) throws IOException {
+            super(new StringReader(""));
+            this.buffer = buffer;
+            if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+                throw new IOException("Not binary JSON");
+            }
+        }
+
+        private byte peekTag() {
+            if (!buffer.hasRemaining()) {
+                return 0;
+            }
+            return buffer.get(buffer.position());
+        }
+
+        private void expect(byte tag) throws IOException {
+            byte actual = buffer.hasRemaining() ? buffer.get() : 0;
+            if (actual != tag) {
+                throw new IOException(String.format("Expected tag %d but found %d", tag, actual));
+            }
+        }
+
+        private int readVarInt() {
+            int v = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                v |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        private String readString() {
+            int ref = readVarInt();
+            if (ref > 0) {
+                return strings.get(ref - 1);
+            }
+            byte[] bytes = new byte[readVarInt()];
+            buffer.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        @Override
+        public void beginArray() throws IOException {
+            expect(BEGIN_ARRAY);
+        }
+
+        @Override
+        public void endArray() throws IOException {
+            expect(END_ARRAY);
+        }
+
+        @Override
+        public void beginObject() throws IOException {
+            expect(BEGIN_OBJECT);
+        }
+
+        @Override
+        public void endObject() throws IOException {
+            expect(END_OBJECT);
+        }
+
+        @Override
+        public boolean hasNext() {
+            byte tag = peekTag();
+            return tag != END_ARRAY && tag != END_OBJECT && tag != 0;
+        }
+
+        @Override
+        public JsonToken peek() throws IOException {
+            byte tag = peekTag();
+            switch (tag) {
+                case 0:
+                    return JsonToken.END_DOCUMENT;
+                case BEGIN_ARRAY:
+                    return JsonToken.BEGIN_ARRAY;
+                case END_ARRAY:
+                    return JsonToken.END_ARRAY;
+                case BEGIN_OBJECT:
+                    return JsonToken.BEGIN_OBJECT;
+                case END_OBJECT:
+                    return JsonToken.END_OBJECT;
+                case NAME:
+                    return JsonToken.NAME;
+                case STRING:
+                    return JsonToken.STRING;
+                case NUMBER:
+                case INT:
+                case LONG:
+                case DOUBLE:
+                    return JsonToken.NUMBER;
+                case TRUE:
+                case FALSE:
+                    return JsonToken.BOOLEAN;
+                case NULL:
+                    return JsonToken.NULL;
+                default:
+                    throw new IOException("Unknown tag " + tag);
+            }
+        }
+
+        @Override
+        public String nextName() throws IOException {
+            expect(NAME);
+            return readString();
+        }
+
+        @Override
+        public String nextString() throws IOException {
+            byte tag = buffer.get();
+            switch (tag) {
+                case STRING:
+                case NUMBER:
+                    return readString();
+                case INT:
+                    return String.valueOf(readVarInt());
+                case LONG:
+                    return String.valueOf(buffer.getLong());
+                case DOUBLE:
+                    return String.valueOf(buffer.getDouble());
+                default:
+                    throw new IOException("Expected a string but found tag " + tag);
+            }
+        }
+
+        @Override
+        public boolean nextBoolean() throws IOException {
+            byte tag = buffer.get();
+            if (tag != TRUE && tag != FALSE) {
+                throw new IOException("Expected a boolean but found tag " + tag);
+            }
+            return tag == TRUE;
+        }
+
+        @Override
+        public void nextNull() throws IOException {
+            expect(NULL);
+        }
+
+        @Override
+        public double nextDouble() throws IOException {
+            byte tag = peekTag();
+            if (tag == DOUBLE) {
+                buffer.get();
+                return buffer.getDouble();
+            }
+            return Double.parseDouble(nextString());
+        }
+
+        @Override
+        public long nextLong() throws IOException {
+            byte tag = peekTag();
+            if (tag == INT) {
+                buffer.get();
+                return readVarInt();
+            } else if (tag == LONG) {
+                buffer.get();
+                return buffer.getLong();
+            }
+            return Long.parseLong(nextString());
+        }
+
+        @Override
+        public int nextInt() throws IOException {
+            byte tag = peekTag();
+            if (tag == INT) {
+                buffer.get();
+                return readVarInt();
+            }
+            return Math.toIntExact(nextLong());
+        }
+
+        @Override
+        public void skipValue() throws IOException {
+            int depth = 0;
+            do {
+                byte tag = peekTag();
+                switch (tag) {
+                    case BEGIN_ARRAY:
+                    case BEGIN_OBJECT:
+                        buffer.get();
+                        depth++;
+                        break;
+                    case END_ARRAY:
+                    case END_OBJECT:
+                        buffer.get();
+                        depth--;
+                        break;
+                    case NAME:
+                        nextName();
+                        break;
+                    case TRUE:
+                    case FALSE:
+                    case NULL:
+                        buffer.get();
+                        break;
+                    case 0:
+                        throw new IOException("Unexpected end of binary JSON");
+                    default:
+                        // Strings are read rather than skipped so that
+                        // later references to them can be resolved
+                        nextString();
+                }
+            } while (depth > 0);
+        }
+
+        @Override
+        public String getPath() {
+            return "$";
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "BinaryJson.Reader at position " + buffer.position();
+        }
+    }
+}
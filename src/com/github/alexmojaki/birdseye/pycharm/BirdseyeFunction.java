@@ -3,7 +3,6 @@ package com.github.alexmojaki.birdseye.pycharm;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.RangeMarker;
 import com.intellij.openapi.editor.ex.DocumentEx;
-import com.intellij.openapi.util.Key;
 import com.jetbrains.python.psi.PyFunction;
 
 import java.util.HashMap;
@@ -22,8 +21,6 @@ import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
  */
 public class BirdseyeFunction {
 
-    static final Key<Range> ORIGINAL_RANGE = Key.create("ORIGINAL_RANGE");
-
     // Each Range in these maps corresponds to one or more nodes in the Python AST
     // that we need to keep track of in the document. The Range comes from the
     // Python side and is relative to the start of the function.
@@ -45,7 +42,6 @@ public class BirdseyeFunction {
 
         for (Range range : response.ranges) {
             RangeMarker rangeMarker = createRangeMarker(document, startOffset, range);
-            rangeMarker.putUserData(ORIGINAL_RANGE, range);
             rangeMarkers.put(range, rangeMarker);
         }
 
@@ -2,7 +2,6 @@ package com.github.alexmojaki.birdseye.pycharm;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
 import com.intellij.icons.AllIcons;
 import com.intellij.openapi.editor.RangeMarker;
 import com.intellij.openapi.editor.ex.DocumentEx;
@@ -24,8 +23,6 @@ import org.jetbrains.annotations.Nullable;
 import javax.swing.*;
 import java.util.*;
 import java.util.function.Consumer;
-import java.util.function.Predicate;
-import java.util.stream.Collectors;
 
 import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
 
@@ -35,6 +32,7 @@ public class Call {
     CallPanel panel;
     private FunctionData functionData;
     private MultiMap<Range, Node> nodes = new MultiMap<>();
+    private NodeIntervalIndex nodeIndex = null;
 
     // A key here is a _tree_index from birdseye
     Map<Integer, LoopNavigator> navigators = new TreeMap<>();
@@ -46,29 +44,49 @@ public class Call {
     // They include red boxes for exceptions and gray text for uncovered code.
     // They are temporary only in contrast to the highlighter for a selected node
     // which survives loop navigations.
-    private List<HideableRangeHighlighter> tempHighlighters = new ArrayList<>();
+    private Map<Node, HideableRangeHighlighter> uncoveredHighlighters = new HashMap<>();
+    Map<Node, HideableRangeHighlighter> exceptionHighlighters = new HashMap<>();
+
+    private static final TextAttributes UNCOVERED_ATTRIBUTES = new TextAttributes();
+    private static final TextAttributes EXCEPTION_ATTRIBUTES = new TextAttributes();
+
+    static {
+        UNCOVERED_ATTRIBUTES.setForegroundColor(JBColor.GRAY);
+        EXCEPTION_ATTRIBUTES.setEffectType(EffectType.ROUNDED_BOX);
+        EXCEPTION_ATTRIBUTES.setEffectColor(JBColor.RED);
+    }
+
+    // For each loop (by tree index), the nodes and loops inside it at any depth,
+    // i.e. those affected by stepping through it. See updateLoop().
+    private final Map<Integer, Set<Node>> nodesInLoop = new HashMap<>();
+    private final Map<Integer, List<LoopNavigator>> loopsInLoop = new HashMap<>();
 
     Content toolWindowContent;
     BirdseyeFunction birdseyeFunction;
     CallMeta meta;
-    List<HideableRangeHighlighter> exceptionHighlighters = new ArrayList<>();
+
+    // Rough estimate of how much memory callData takes, see MyProjectComponent.enforceMemoryBudget
+    long sizeBytes;
+
+    // True if callData has been dropped to save memory, see unload()
+    private boolean unloaded = false;
 
     /**
-     * Gets all the data about a call from the server. If there's an error, returns null.
-     * Otherwise, returns an initialised Call.
+     * Returns an initialised Call from all the data about a call retrieved from the server
+     * (see ApiClient.getCallAsync). Must be called in the UI thread.
      */
-    static Call get(CallMeta callMeta, PyFunction psiFunction, BirdseyeFunction birdseyeFunction) {
+    static Call create(CallMeta callMeta,
+                       ApiClient.CallResponse callResponse,
+                       PyFunction psiFunction,
+                       BirdseyeFunction birdseyeFunction) {
         Call call = new Call();
 
         call.project = psiFunction.getProject();
 
         MyProjectComponent component = MyProjectComponent.getInstance(call.project);
-        ApiClient.CallResponse callResponse = component.apiClient.getCall(callMeta.id);
-        if (callResponse == null) {  // indicates an error reaching the server
-            return null;
-        }
 
         call.callData = callResponse.call.data;
+        call.sizeBytes = estimateSizeBytes(call.callData);
         call.functionData = callResponse.function.data;
         call.meta = callMeta;
         call.panel = new CallPanel(call);
@@ -126,6 +144,17 @@ public class Call {
             navigators.put(navigator.treeIndex, navigator);
         }
 
+        for (Node node : nodes.values()) {
+            for (int loopIndex : functionData.node_loops.getOrDefault(node.treeIndex(), EMPTY_INTS)) {
+                nodesInLoop.computeIfAbsent(loopIndex, k -> new HashSet<>()).add(node);
+            }
+        }
+        for (LoopNavigator navigator : navigators.values()) {
+            for (int loopIndex : functionData.node_loops.getOrDefault(navigator.treeIndex, EMPTY_INTS)) {
+                loopsInLoop.computeIfAbsent(loopIndex, k -> new ArrayList<>()).add(navigator);
+            }
+        }
+
         update();
     }
 
@@ -139,7 +168,8 @@ public class Call {
      * Perform action on every highlighter this call manages.
      */
     void processHighlighters(Consumer<HideableRangeHighlighter> action) {
-        tempHighlighters.forEach(action);
+        uncoveredHighlighters.values().forEach(action);
+        exceptionHighlighters.values().forEach(action);
         panel.selectedNodes.values().forEach(action);
     }
 
@@ -162,10 +192,10 @@ public class Call {
      */
     public class NodeValue {
 
-        JsonArray arr;
+        final NodeValues.Value value;
 
-        NodeValue(JsonArray arr) {
-            this.arr = arr;
+        NodeValue(NodeValues.Value value) {
+            this.value = value;
         }
 
         @NotNull
@@ -203,21 +233,26 @@ public class Call {
 
             result.label = prefix;
 
-            for (int i = 3; i < arr.size(); i++) {
-                JsonArray subarr = arr.get(i).getAsJsonArray();
+            // Children are only decoded if the user expands this node,
+            // see InspectorTreeNode.setChildLoader
+            boolean hasChildren = value.hasChildren() || value.meta.hasLen();
+            result.setChildLoader(hasChildren, this::addChildren);
+
+            return result;
+        }
+
+        private void addChildren(InspectorTreeNode treeNode) {
+            for (JsonElement element : value.children()) {
+                JsonArray subarr = element.getAsJsonArray();
                 String childPrefix = subarr.get(0).getAsString();
-                NodeValue child = new NodeValue(subarr.get(1).getAsJsonArray());
+                NodeValue child = new NodeValue(NodeValues.Value.fromJson(subarr.get(1).getAsJsonArray()));
                 InspectorTreeNode childTreeNode = child.treeNode(childPrefix);
-                result.add(childTreeNode);
+                treeNode.add(childTreeNode);
             }
 
-            Map meta = meta();
-            if (meta.containsKey("len")) {
-                int len = ((Double) meta.get("len")).intValue();
-                result.add(new InspectorTreeNode.Len(len));
+            if (value.meta.hasLen()) {
+                treeNode.add(new InspectorTreeNode.Len(value.meta.len));
             }
-
-            return result;
         }
 
         String typeName() {
@@ -225,19 +260,19 @@ public class Call {
             if (i < 0) {
                 return null;
             }
-            return callData.type_names[i];
+            return callData.type_names.get(i);
         }
 
         int typeIndex() {
-            return arr.get(1).getAsInt();
+            return value.typeIndex;
         }
 
         String repr() {
-            return arr.get(0).getAsString();
+            return value.repr;
         }
 
-        Map meta() {
-            return GSON.fromJson(arr.get(2), Map.class);
+        NodeValues.Meta meta() {
+            return value.meta;
         }
 
         boolean isStatement() {
@@ -265,24 +300,12 @@ public class Call {
      * The data column of the call table
      */
     public static class CallData {
-        Map<Integer, JsonElement> node_values;
-        String[] type_names;
-        Loops loop_iterations;
+        NodeValues node_values;
+        List<String> type_names;
+        LoopTree loop_iterations;
         int num_special_types;
     }
 
-    /**
-     * The Iteration class in Python birdseye
-     */
-    static class Iteration {
-        int index;
-        Loops loops;
-    }
-
-    // Basically a type alias
-    static class Loops extends HashMap<Integer, Iteration[]> {
-    }
-
     /**
      * The data column of the function table
      */
@@ -310,38 +333,20 @@ public class Call {
     static class LoopNodeRange extends AbstractNodeRange {
     }
 
-    /**
-     * Returns a list of nodes corresponding to range markers that
-     * contain (inclusively) the given offset in the document.
-     */
-    private List<Node> nodesOverlappingWith(int offset) {
-        List<Node> nodes = new ArrayList<>();
-        document().processRangeMarkersOverlappingWith(offset, offset, rangeMarker -> {
-            Range range = rangeMarker.getUserData(BirdseyeFunction.ORIGINAL_RANGE);
-            if (range != null) {
-                for (Node node : this.nodes.get(range)) {
-                    if (node != null) {
-                        nodes.add(node);
-                    }
-                }
-            }
-            return true;
-        });
-        return nodes;
-    }
-
     /**
      * Return the deepest (i.e. most specific) node that has a value
      * and whose range contains both offset and offset+1. The idea is
      * that the mouse cursor is between offset and offset+1.
+     * <p>
+     * This runs on every mouse movement, so it uses an index of the node ranges
+     * which is rebuilt when the document changes.
      */
     public Node nodeAtPosition(int offset) {
-        List<Node> nodes = nodesOverlappingWith(offset);
-        nodes.retainAll(nodesOverlappingWith(offset + 1));
-        return nodes.stream()
-                .filter(n -> n.value() != null)
-                .max(Comparator.comparing(n -> n.range.depth))
-                .orElse(null);
+        long stamp = document().getModificationStamp();
+        if (nodeIndex == null || nodeIndex.modificationStamp != stamp) {
+            nodeIndex = new NodeIntervalIndex(nodes.values(), stamp);
+        }
+        return nodeIndex.deepestContaining(offset, offset + 1, n -> n.value() != null);
     }
 
     /**
@@ -352,6 +357,16 @@ public class Call {
         final NodeRange range;
         InspectorTreeNode inspectorTreeNode = null;
 
+        // The navigators of the loops containing this node, outermost first,
+        // looked up the first time value() is called. If one of the loops
+        // has no navigator, the node never has a value and this is empty.
+        private LoopNavigator[] loopNavigators = null;
+
+        // The result of value() and the iterations of the loops in loopNavigators
+        // when it was computed. It's still valid if they haven't changed.
+        private NodeValue cachedValue = null;
+        private int[] cachedIterations = null;
+
         Node(NodeRange range) {
             this.range = range;
         }
@@ -421,18 +436,51 @@ public class Call {
          */
         @Nullable
         NodeValue value() {
-            JsonElement element = callData.node_values.get(treeIndex());
-            for (int loopIndex : functionData.node_loops.getOrDefault(treeIndex(), EMPTY_INTS)) {
-                LoopNavigator navigator = navigators.get(loopIndex);
-                if (element == null || navigator == null) {
-                    return null;
+            if (callData == null) {
+                return null;
+            }
+            if (loopNavigators == null) {
+                resolveLoopNavigators();
+            }
+            if (cachedIterations != null && iterationsUnchanged()) {
+                return cachedValue;
+            }
+
+            int[] iterations = new int[loopNavigators.length];
+            Object element = callData.node_values.get(treeIndex());
+            for (int i = 0; i < loopNavigators.length; i++) {
+                iterations[i] = loopNavigators[i].currentIteration();
+                if (element != null) {
+                    element = NodeValues.iteration(element, iterations[i]);
                 }
-                element = element.getAsJsonObject().get(String.valueOf(navigator.currentIteration()));
             }
-            if (element == null) {
-                return null;
+            NodeValues.Value value = NodeValues.asValue(element);
+            cachedValue = value == null ? null : new NodeValue(value);
+            cachedIterations = iterations;
+            return cachedValue;
+        }
+
+        private void resolveLoopNavigators() {
+            int[] loopIndices = functionData.node_loops.getOrDefault(treeIndex(), EMPTY_INTS);
+            LoopNavigator[] result = new LoopNavigator[loopIndices.length];
+            for (int i = 0; i < loopIndices.length; i++) {
+                result[i] = navigators.get(loopIndices[i]);
+                if (result[i] == null) {
+                    result = new LoopNavigator[0];
+                    cachedIterations = EMPTY_INTS;
+                    break;
+                }
             }
-            return new NodeValue(element.getAsJsonArray());
+            loopNavigators = result;
+        }
+
+        private boolean iterationsUnchanged() {
+            for (int i = 0; i < loopNavigators.length; i++) {
+                if (cachedIterations[i] != loopNavigators[i].currentIteration()) {
+                    return false;
+                }
+            }
+            return true;
         }
 
         @NotNull
@@ -457,6 +505,15 @@ public class Call {
         Call call() {
             return Call.this;
         }
+
+        /**
+         * Drops references to the value of this node, see unload().
+         */
+        void forgetValue() {
+            cachedValue = null;
+            cachedIterations = null;
+            inspectorTreeNode = null;
+        }
     }
 
     /**
@@ -480,18 +537,19 @@ public class Call {
      */
     class LoopNavigator {
         int iterationIndex = 0;
-        List<Integer> indices;
+        int[] indices = EMPTY_INTS;
+        int run = -1;  // the LoopTree run that indices came from, -1 if the loop didn't run
         int treeIndex;  // the tree_index of the loop statement
         SmartPsiElementPointer pointer;
 
         private int currentIteration() {
-            return Math.min(iterationIndex, indices.size() - 1);
+            return Math.min(iterationIndex, indices.length - 1);
         }
 
         String currentIterationDisplay() {
             int i = currentIteration();
-            if (0 <= i && i < indices.size()) {
-                return indices.get(i) + "";
+            if (0 <= i && i < indices.length) {
+                return indices[i] + "";
             }
             return null;
         }
@@ -502,69 +560,102 @@ public class Call {
 
         boolean canNavigate(int direction) {
             int result = currentIteration() + direction;
-            return 0 <= result && result < indices.size();
+            return 0 <= result && result < indices.length;
         }
 
         void navigate(int direction) {
             if (canNavigate(direction)) {
                 iterationIndex = currentIteration() + direction;
-                update();
+                updateLoop(this);
             }
         }
 
     }
 
     /**
-     * This is called when either the call is first created and viewed,
-     * or when the user steps through a loop. The nodes get fresh values
-     * and the appearance of many things can change.
+     * This is called when the call is first created and viewed.
+     * The nodes get fresh values and the appearance of many things can change.
      * <p>
      * This corresponds somewhat to the render() function in call.js.
      */
     private void update() {
         // Updating the state of loops.
         for (LoopNavigator navigator : navigators.values()) {
-            navigator.indices = Collections.emptyList();
+            navigator.indices = EMPTY_INTS;
+            navigator.run = -1;
         }
-        updateLoopIndices(callData.loop_iterations);
+        updateLoopIndices(LoopTree.ROOT);
 
         // This kicks off checking for line markers, particularly letting
         // LoopArrowLineMarkerProvider show new arrows.
-        DaemonCodeAnalyzer.getInstance(project).restart();
+        // Only the arrows in this file can have changed.
+        restartAnalysis(project, Collections.singletonList(document()));
 
         // Update the tree in the inspector
         panel.updateValues();
 
         // Update temporary highlighters, i.e. uncovered statements and exceptions
+        updateTempHighlighters(nodes.values());
+    }
 
-        for (HideableRangeHighlighter highlighter : tempHighlighters) {
-            highlighter.hide();
+    /**
+     * Like update(), but only for what can change when the user steps
+     * through the given loop: the loops and nodes inside it.
+     */
+    private void updateLoop(LoopNavigator navigator) {
+        for (LoopNavigator inner : loopsInLoop.getOrDefault(navigator.treeIndex, Collections.emptyList())) {
+            inner.indices = EMPTY_INTS;
+            inner.run = -1;
+        }
+        if (navigator.run >= 0) {
+            updateLoopIndices(callData.loop_iterations.iteration(navigator.run, navigator.currentIteration()));
         }
-        tempHighlighters.clear();
 
-        TextAttributes attributes = new TextAttributes();
-        attributes.setForegroundColor(JBColor.GRAY);
-        addTempHighlighters(n -> n.value() == null && n.range.classes.contains("stmt"), attributes);
+        // Only the arrows in this file can have changed
+        restartAnalysis(project, Collections.singletonList(document()));
 
-        attributes = new TextAttributes();
-        attributes.setEffectType(EffectType.ROUNDED_BOX);
-        attributes.setEffectColor(JBColor.RED);
-        exceptionHighlighters = addTempHighlighters(n -> {
-            if (n.isRangeInvalid()) {
-                return false;
-            }
-            NodeValue value = n.value();
-            return value != null && value.isException();
-        }, attributes);
+        Set<Node> affected = nodesInLoop.getOrDefault(navigator.treeIndex, Collections.emptySet());
+        panel.updateValues(affected);
+        updateTempHighlighters(affected);
     }
 
-    private List<HideableRangeHighlighter> addTempHighlighters(Predicate<Node> predicate, TextAttributes attributes) {
-        List<HideableRangeHighlighter> highlighters = nodes.values().stream()
-                .filter(predicate)
-                .map(node -> node.addRangeHighlighter(attributes))
-                .collect(Collectors.toList());
-        tempHighlighters.addAll(highlighters);
-        return highlighters;
+    /**
+     * Recalculates the temporary highlighters for the given nodes.
+     * Highlighters are only added or removed for nodes whose state changed,
+     * since usually stepping through a loop changes very few of them.
+     */
+    private void updateTempHighlighters(Collection<Node> nodesToUpdate) {
+        List<HideableRangeHighlighter> toHide = new ArrayList<>();
+        List<HideableRangeHighlighter> toShow = new ArrayList<>();
+        for (Node node : nodesToUpdate) {
+            NodeValue value = node.value();
+            updateTempHighlighter(
+                    uncoveredHighlighters, node, UNCOVERED_ATTRIBUTES,
+                    value == null && node.range.classes.contains("stmt"),
+                    toHide, toShow);
+            updateTempHighlighter(
+                    exceptionHighlighters, node, EXCEPTION_ATTRIBUTES,
+                    value != null && value.isException() && !node.isRangeInvalid(),
+                    toHide, toShow);
+        }
+        HideableRangeHighlighter.update(project, toHide, toShow);
+    }
+
+    private static void updateTempHighlighter(Map<Node, HideableRangeHighlighter> highlighters,
+                                              Node node,
+                                              TextAttributes attributes,
+                                              boolean wanted,
+                                              List<HideableRangeHighlighter> toHide,
+                                              List<HideableRangeHighlighter> toShow) {
+        HideableRangeHighlighter existing = highlighters.get(node);
+        if (wanted && existing == null) {
+            HideableRangeHighlighter highlighter = HideableRangeHighlighter.hidden(node, attributes);
+            highlighters.put(node, highlighter);
+            toShow.add(highlighter);
+        } else if (!wanted && existing != null) {
+            highlighters.remove(node);
+            toHide.add(existing);
+        }
     }
 
     /**
@@ -573,30 +664,83 @@ public class Call {
      * <p>
      * Corresponds to the findRanges() function in call.js
      */
-    private void updateLoopIndices(Loops loops) {
-        if (loops == null || loops.isEmpty()) {
-            return;
-        }
-        for (Integer loopIndex : loops.keySet()) {
-            Iteration[] iterations = loops.get(loopIndex);
-            LoopNavigator navigator = navigators.get(loopIndex);
+    private void updateLoopIndices(int iteration) {
+        LoopTree loopTree = callData.loop_iterations;
+        int firstRun = loopTree.firstRun(iteration);
+        for (int run = firstRun; run < firstRun + loopTree.runCount(iteration); run++) {
+            LoopNavigator navigator = navigators.get(loopTree.loop(run));
             if (navigator == null) {
                 continue;
             }
-            navigator.indices = mapToList(iterations, i -> i.index);
-            updateLoopIndices(iterations[navigator.currentIteration()].loops);
+            navigator.indices = loopTree.indices(run);
+            navigator.run = run;
+            if (navigator.indices.length > 0) {
+                updateLoopIndices(loopTree.iteration(run, navigator.currentIteration()));
+            }
         }
     }
 
+    boolean isUnloaded() {
+        return unloaded;
+    }
+
+    /**
+     * Drops the values in this call to save memory while the user is looking at
+     * other calls, keeping everything needed to show it again in the same state
+     * (e.g. selected nodes and loop positions) once reload() is called.
+     * Until then nodes have no values. Should only be called for a call that isn't selected.
+     */
+    void unload() {
+        if (unloaded) {
+            return;
+        }
+        unloaded = true;
+        callData = null;
+
+        List<HideableRangeHighlighter> toHide = new ArrayList<>(uncoveredHighlighters.values());
+        toHide.addAll(exceptionHighlighters.values());
+        HideableRangeHighlighter.update(project, toHide, Collections.emptyList());
+        uncoveredHighlighters.clear();
+        exceptionHighlighters.clear();
+
+        for (LoopNavigator navigator : navigators.values()) {
+            navigator.run = -1;
+        }
+        for (Node node : nodes.values()) {
+            node.forgetValue();
+        }
+        panel.clearValues();
+    }
+
+    /**
+     * Restores the data dropped by unload(), retrieved again with ApiClient.getCallAsync.
+     */
+    void reload(ApiClient.CallResponse callResponse) {
+        callData = callResponse.call.data;
+        sizeBytes = estimateSizeBytes(callData);
+        unloaded = false;
+        update();
+    }
+
+    /**
+     * Estimates the memory taken by the data of a call once decoded,
+     * which is the same wherever the call came from.
+     */
+    private static long estimateSizeBytes(CallData callData) {
+        return callData.node_values.estimateSizeBytes()
+                + callData.loop_iterations.estimateSizeBytes();
+    }
+
     /**
      * Since Call holds a lot of data, when we no longer need one,
      * we get rid of references to the data just in case there's a
      * memory leak somewhere.
      */
     void clearMemoryJustInCase() {
-        callData.loop_iterations.clear();
-        callData.node_values.clear();
-        callData = null;
+        if (callData != null) {
+            callData.node_values.clear();
+            callData = null;
+        }
         for (Node node : panel.selectedNodes.keySet()) {
             InspectorTreeNode treeNode = node.inspectorTreeNode;
 
@@ -618,10 +762,13 @@ public class Call {
         functionData.node_ranges = null;
         functionData = null;
         nodes.clear();
+        nodeIndex = null;
         navigators.clear();
         project = null;
-        tempHighlighters.clear();
+        uncoveredHighlighters.clear();
         exceptionHighlighters.clear();
+        nodesInLoop.clear();
+        loopsInLoop.clear();
         toolWindowContent = null;
         meta = null;
     }
@@ -0,0 +1,228 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.google.gson.stream.JsonReader;
+import com.intellij.openapi.application.PathManager;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Stores calls on disk under the IDE's system directory so that reopening a call,
+ * even after restarting the IDE, doesn't need the server. This is possible because
+ * a call never changes once birdseye has recorded it.
+ * <p>
+ * Each call is stored in its own file in the encoding of BinaryJson, which is read back
+ * through a memory mapped buffer. When the total size of the files exceeds the limit
+ * in the settings, the least recently used calls are deleted. The last modified time of
+ * each file is updated whenever it's read to keep track of this.
+ * <p>
+ * The cache is shared by all projects.
+ */
+class CallCache {
+
+    static final CallCache INSTANCE = new CallCache(
+            new File(PathManager.getSystemPath(), "birdseye" + File.separator + "calls"));
+
+    private static final String SUFFIX = ".call";
+
+    private final File directory;
+
+    private CallCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the name of the file for a key, which can be any string that uniquely identifies a call.
+     */
+    private File file(String key) {
+        return new File(directory, DigestUtils.sha256Hex(key) + SUFFIX);
+    }
+
+    /**
+     * Returns the cached call for this key, or null if it's not in the cache or can't be read.
+     */
+    @Nullable
+    ApiClient.CallResponse get(String key) {
+        File file = file(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ApiClient.CallResponse response = CallDecoder.decode(new BinaryJson.Reader(buffer));
+
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return response;
+        } catch (IOException | RuntimeException e) {
+            // Probably a file from an older version of the plugin,
+            // or written by a process that was killed halfway through
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Records everything read from a JsonReader (returned by reader())
+     * so that it can be stored in the cache.
+     */
+    class Writer implements Closeable {
+        private final String key;
+        private final File tempFile;
+        private final FailureRecordingOutputStream output;
+        private final BinaryJson.RecordingReader reader;
+        private boolean committed = false;
+
+        private Writer(String key, JsonReader source) throws IOException {
+            this.key = key;
+            //noinspection ResultOfMethodCallIgnored
+            directory.mkdirs();
+            tempFile = File.createTempFile("call", ".tmp", directory);
+            output = new FailureRecordingOutputStream(new FileOutputStream(tempFile));
+            reader = new BinaryJson.RecordingReader(source, output);
+        }
+
+        JsonReader reader() {
+            return reader;
+        }
+
+        /**
+         * Stores what has been read under the key, then evicts old calls
+         * if the cache is now bigger than maxBytes.
+         * Throws an exception if writing to the cache failed at any point,
+         * in which case nothing is stored.
+         */
+        void commit(long maxBytes) throws IOException {
+            reader.closeOutput();
+            if (output.failure != null) {
+                throw output.failure;
+            }
+            Files.move(tempFile.toPath(), file(key).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+            evict(maxBytes);
+        }
+
+        /**
+         * Discards what has been read if it wasn't committed, e.g. because of an error.
+         */
+        @Override
+        public void close() {
+            if (!committed) {
+                try {
+                    reader.closeOutput();
+                } catch (IOException ignored) {
+                }
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Passes writes on until one fails, e.g. because the disk is full, and then ignores
+     * the rest. This way a failure to cache a call doesn't stop the call being read
+     * and decoded, and is reported by Writer.commit instead.
+     */
+    private static class FailureRecordingOutputStream extends FilterOutputStream {
+        IOException failure = null;
+
+        FailureRecordingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) {
+            if (failure == null) {
+                try {
+                    out.write(b);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (failure == null) {
+                try {
+                    out.write(b, off, len);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (failure == null) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            flush();
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    Writer writer(String key, JsonReader source) throws IOException {
+        return new Writer(key, source);
+    }
+
+    /**
+     * Deletes the least recently used calls until the cache is at most maxBytes in size.
+     */
+    private synchronized void evict(long maxBytes) {
+        // Clean up after writers that never finished, e.g. because the IDE was killed
+        File[] tempFiles = directory.listFiles((dir, name) -> name.endsWith(".tmp"));
+        if (tempFiles != null) {
+            long cutoff = System.currentTimeMillis() - 60 * 60 * 1000;
+            for (File file : tempFiles) {
+                if (file.lastModified() < cutoff) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long total = Arrays.stream(files).mapToLong(File::length).sum();
+        if (total <= maxBytes) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
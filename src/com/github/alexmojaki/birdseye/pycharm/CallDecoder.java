@@ -0,0 +1,317 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.util.*;
+
+import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
+
+/**
+ * Decodes the response of the call API (see ApiClient.CallResponse) while it streams in.
+ * <p>
+ * Calls can be hundreds of megabytes of JSON. Reading the whole body into a String and
+ * then parsing that would mean holding the raw text, the String and the parsed
+ * structures in memory at the same time. Instead this reads the JSON tokens once,
+ * straight into Call.CallData and Call.FunctionData, skipping the parts we don't use.
+ */
+class CallDecoder {
+
+    private CallDecoder() {
+    }
+
+    /**
+     * Like Function but allowed to throw IOException, which JsonReader methods do.
+     */
+    private interface Decoding<T> {
+        T read(JsonReader reader) throws IOException;
+    }
+
+    static ApiClient.CallResponse decode(Reader reader) throws IOException {
+        return decode(new JsonReader(reader));
+    }
+
+    /**
+     * The reader may also be one of the readers in BinaryJson, which only support
+     * the public methods of JsonReader. That's why Gson isn't used to decode
+     * any maps below.
+     */
+    static ApiClient.CallResponse decode(JsonReader jsonReader) throws IOException {
+        ApiClient.CallResponse response = new ApiClient.CallResponse();
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            switch (jsonReader.nextName()) {
+                case "call":
+                    response.call = new ApiClient.CallResponse._Call();
+                    response.call.data = readData(jsonReader, CallDecoder::readCallData);
+                    break;
+                case "function":
+                    response.function = new ApiClient.CallResponse.Function();
+                    response.function.data = readData(jsonReader, CallDecoder::readFunctionData);
+                    break;
+                default:
+                    jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        return response;
+    }
+
+    /**
+     * Reads an object like {"data": ..., other fields we don't care about},
+     * decoding only the value of "data".
+     */
+    private static <T> T readData(JsonReader reader, Decoding<T> decoding) throws IOException {
+        T result = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("data")) {
+                result = decoding.read(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    private static Call.CallData readCallData(JsonReader reader) throws IOException {
+        Call.CallData data = new Call.CallData();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "node_values":
+                    data.node_values = readNodeValues(reader);
+                    break;
+                case "type_names":
+                    data.type_names = Interning.typeNames(GSON.fromJson(reader, String[].class));
+                    break;
+                case "loop_iterations":
+                    data.loop_iterations = readLoopTree(reader);
+                    break;
+                case "num_special_types":
+                    data.num_special_types = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        if (data.loop_iterations == null) {
+            data.loop_iterations = LoopTree.EMPTY;
+        }
+        return data;
+    }
+
+    /**
+     * The keys of node_values are tree indices of nodes.
+     */
+    private static NodeValues readNodeValues(JsonReader reader) throws IOException {
+        NodeValues nodeValues = new NodeValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int treeIndex = Integer.parseInt(reader.nextName());
+            nodeValues.put(treeIndex, readNodeValue(reader));
+        }
+        reader.endObject();
+        return nodeValues;
+    }
+
+    /**
+     * Reads either a value (an array) or an object mapping iteration numbers
+     * to values for a node in a loop, see NodeValues.
+     */
+    private static Object readNodeValue(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return readValue(reader);
+        }
+        NodeValues.Level level = new NodeValues.Level();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int iteration = Integer.parseInt(reader.nextName());
+            level.put(iteration, readNodeValue(reader));
+        }
+        reader.endObject();
+        level.compact();
+        return level;
+    }
+
+    /**
+     * Reads a value array [repr, type index, meta, children...], see NodeValues.Value.
+     * The children aren't needed unless the user expands the value, so rather than
+     * building JSON elements for them, they're copied as text into a single string.
+     */
+    private static NodeValues.Value readValue(JsonReader reader) throws IOException {
+        reader.beginArray();
+        String repr = Interning.string(reader.nextString());
+        int typeIndex = reader.nextInt();
+        NodeValues.Meta meta = readMeta(reader);
+        String childrenJson = null;
+        if (reader.hasNext()) {
+            StringWriter out = new StringWriter();
+            JsonWriter writer = new JsonWriter(out);
+            writer.beginArray();
+            while (reader.hasNext()) {
+                copyValue(reader, writer);
+            }
+            writer.endArray();
+            childrenJson = out.toString();
+        }
+        reader.endArray();
+        return NodeValues.Value.decoded(repr, typeIndex, meta, childrenJson);
+    }
+
+    private static NodeValues.Meta readMeta(JsonReader reader) throws IOException {
+        int len = -1;
+        boolean hasOtherKeys = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("len")) {
+                len = reader.nextInt();
+            } else {
+                hasOtherKeys = true;
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return NodeValues.Meta.of(len, hasOtherKeys);
+    }
+
+    private static void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                writer.jsonValue(reader.nextString());
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected " + reader.peek() + " at " + reader.getPath());
+        }
+    }
+
+    private static LoopTree readLoopTree(JsonReader reader) throws IOException {
+        LoopTree.Builder builder = new LoopTree.Builder();
+        readLoops(reader, builder, LoopTree.ROOT);
+        return builder.build();
+    }
+
+    /**
+     * Reads a JSON object mapping the tree indices of loops to lists of iterations,
+     * adding them to the builder as runs inside the given iteration.
+     */
+    private static void readLoops(JsonReader reader, LoopTree.Builder builder, int parentIteration) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int treeIndex = Integer.parseInt(reader.nextName());
+            int run = builder.addRun(treeIndex, parentIteration);
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readIteration(reader, builder, run);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static void readIteration(JsonReader reader, LoopTree.Builder builder, int run) throws IOException {
+        int iteration = builder.addIteration(run);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "index":
+                    builder.setIndex(iteration, reader.nextInt());
+                    break;
+                case "loops":
+                    readLoops(reader, builder, iteration);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static Call.FunctionData readFunctionData(JsonReader reader) throws IOException {
+        // Apart from node_loops, this is simple enough for Gson to take care of
+        Call.FunctionData data = new Call.FunctionData();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "node_ranges":
+                    data.node_ranges = GSON.fromJson(reader, Call.NodeRange[].class);
+                    break;
+                case "loop_ranges":
+                    data.loop_ranges = GSON.fromJson(reader, Call.LoopNodeRange[].class);
+                    break;
+                case "node_loops":
+                    data.node_loops = readNodeLoops(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return data;
+    }
+
+    /**
+     * Reads a JSON object mapping tree indices of nodes to lists of tree indices of the loops
+     * containing them.
+     */
+    private static Map<Integer, int[]> readNodeLoops(JsonReader reader) throws IOException {
+        Map<Integer, int[]> nodeLoops = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int treeIndex = Integer.parseInt(reader.nextName());
+            nodeLoops.put(treeIndex, readInts(reader));
+        }
+        reader.endObject();
+        return nodeLoops;
+    }
+
+    private static int[] readInts(JsonReader reader) throws IOException {
+        int[] result = new int[4];
+        int size = 0;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (size == result.length) {
+                result = Arrays.copyOf(result, size * 2);
+            }
+            result[size++] = reader.nextInt();
+        }
+        reader.endArray();
+        return Arrays.copyOf(result, size);
+    }
+
+}
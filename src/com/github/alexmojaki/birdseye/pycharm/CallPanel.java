@@ -211,6 +211,37 @@ public class CallPanel extends JBPanel {
         reopenPaths();
     }
 
+    /**
+     * Removes all values from the inspector, keeping track of which nodes are
+     * selected and which paths are open so that updateValues() can restore them.
+     */
+    void clearValues() {
+        DefaultMutableTreeNode root = root();
+        root.removeAllChildren();
+        model.nodeStructureChanged(root);
+    }
+
+    /**
+     * Like updateValues(), but only replaces the values of the given nodes,
+     * e.g. those inside a loop that the user stepped through.
+     */
+    void updateValues(Set<Call.Node> nodes) {
+        DefaultMutableTreeNode root = root();
+        boolean changed = false;
+        for (int i = 0; i < root.getChildCount(); i++) {
+            InspectorTreeNode treeNode = (InspectorTreeNode) root.getChildAt(i);
+            if (!nodes.contains(treeNode.node)) {
+                continue;
+            }
+            model.removeNodeFromParent(treeNode);
+            model.insertNodeInto(treeNode.node.freshInspectorTreeNode(), root, i);
+            changed = true;
+        }
+        if (changed) {
+            reopenPaths();
+        }
+    }
+
     private void reopenPaths() {
         // Don't trigger treeExpanded in the listener when calling tree.expandPath
         reopening = true;
@@ -0,0 +1,147 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
+
+/**
+ * Caches the lists of calls retrieved by ApiClient.listCallsByBodyHashAsync, keyed by body hash,
+ * so that clicking on the same eye icon again doesn't download the whole list again.
+ * <p>
+ * A cached list is known to be fresh, without any request at all, if the number of calls
+ * for the hash reported by the latest hash poll (see ApiClient.getBodyHashesPresent)
+ * is the same as when the list was retrieved, and the server has reported that nothing
+ * has changed since that poll. Otherwise the request is made conditional
+ * using the ETag and Last-Modified headers of the previous response, if the server
+ * provided them, so that an unchanged list costs only a 304 response.
+ * <p>
+ * The birdseye API has no way to request only calls newer than some call, so when
+ * the list has changed it's retrieved in full. The ranges in the response depend
+ * only on the body hash and so don't change.
+ */
+class CallsListCache {
+
+    private static final int MAX_ENTRIES = 50;
+
+    static class Entry {
+        final ApiClient.CallsByHashResponse response;
+        final String etag;
+        final String lastModified;
+
+        // The number of calls for the hash according to the hash poll
+        // when this entry was stored, or -1 if unknown
+        final int count;
+
+        Entry(ApiClient.CallsByHashResponse response, String etag, String lastModified, int count) {
+            this.response = response;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.count = count;
+        }
+    }
+
+    // Least recently used entries are evicted first
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    // Latest number of calls for each hash according to the server
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    synchronized void updateCounts(ApiClient.HashPresentItem[] items) {
+        for (ApiClient.HashPresentItem item : items) {
+            counts.put(item.hash, item.count);
+        }
+    }
+
+    /**
+     * Returns the cached list for this hash if it's known to be up to date, otherwise null.
+     * countsCurrent says whether the counts from the latest hash poll can be trusted,
+     * see MyProjectComponent.hashCountsCurrent. If not, the request has to be made.
+     */
+    @Nullable
+    synchronized ApiClient.CallsByHashResponse getFresh(String hash, boolean countsCurrent) {
+        if (!countsCurrent) {
+            return null;
+        }
+        Entry entry = entries.get(hash);
+        Integer count = counts.get(hash);
+        if (entry == null || count == null || entry.count != count) {
+            return null;
+        }
+        return entry.response;
+    }
+
+    /**
+     * Makes the request for the list conditional on it having changed
+     * since the cached version, if possible. Returns the cached entry used,
+     * which must be passed to update().
+     */
+    @Nullable
+    synchronized Entry addValidators(String hash, HttpRequestBase request) {
+        Entry entry = entries.get(hash);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            request.setHeader(HttpHeaders.IF_MODIFIED_SINCE, entry.lastModified);
+        }
+        return entry;
+    }
+
+    /**
+     * Handles the response to a request prepared by addValidators, returning
+     * the cached list if it hasn't changed (reader is null) or otherwise the new
+     * list, which is cached.
+     */
+    ApiClient.CallsByHashResponse update(String hash,
+                                         @Nullable Entry previous,
+                                         HttpResponse response,
+                                         @Nullable Reader reader) {
+        Entry entry;
+        if (reader == null) {
+            // A 304 response is only possible if the request had validators
+            previous = notNull(previous);
+            entry = new Entry(
+                    previous.response,
+                    headerValue(response, HttpHeaders.ETAG, previous.etag),
+                    headerValue(response, HttpHeaders.LAST_MODIFIED, previous.lastModified),
+                    currentCount(hash));
+        } else {
+            entry = new Entry(
+                    GSON.fromJson(reader, ApiClient.CallsByHashResponse.class),
+                    headerValue(response, HttpHeaders.ETAG, null),
+                    headerValue(response, HttpHeaders.LAST_MODIFIED, null),
+                    currentCount(hash));
+        }
+
+        synchronized (this) {
+            entries.put(hash, entry);
+        }
+        return entry.response;
+    }
+
+    private synchronized int currentCount(String hash) {
+        return counts.getOrDefault(hash, -1);
+    }
+
+    private static String headerValue(HttpResponse response, String name, String defaultValue) {
+        Header header = response.getFirstHeader(name);
+        return header == null ? defaultValue : header.getValue();
+    }
+}
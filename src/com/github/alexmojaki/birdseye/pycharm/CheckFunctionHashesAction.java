@@ -0,0 +1,91 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiManager;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.jetbrains.python.PythonFileType;
+import com.jetbrains.python.psi.PyFunction;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.alexmojaki.birdseye.pycharm.Utils.getFunctionText;
+import static com.github.alexmojaki.birdseye.pycharm.Utils.streamHashFunction;
+
+/**
+ * Checks that Utils.streamHashFunction gives the same hash as hashing the text
+ * of the function the simple way, for every function in the project.
+ * Only available in internal mode (idea.is.internal=true), for development.
+ */
+public class CheckFunctionHashesAction extends AnAction {
+
+    private static final String TITLE = "Birdseye Function Hashes";
+
+    // Don't make a huge dialog if something is very wrong
+    private static final int MAX_REPORTED = 20;
+
+    @Override
+    public void update(AnActionEvent e) {
+        e.getPresentation().setEnabled(e.getProject() != null);
+    }
+
+    @Override
+    public void actionPerformed(AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) {
+            return;
+        }
+
+        List<String> mismatches = new ArrayList<>();
+        int[] checked = {0};
+        boolean completed = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+                () -> ReadAction.run(() -> check(project, mismatches, checked)),
+                "Checking function hashes", true, project);
+        if (!completed) {
+            return;
+        }
+
+        if (mismatches.isEmpty()) {
+            Messages.showInfoMessage(project, "All " + checked[0] + " function hashes match", TITLE);
+        } else {
+            Messages.showErrorDialog(
+                    project,
+                    mismatches.size() + " of " + checked[0] + " function hashes differ:\n"
+                            + String.join("\n", mismatches.subList(0, Math.min(mismatches.size(), MAX_REPORTED))),
+                    TITLE);
+        }
+    }
+
+    private static void check(Project project, List<String> mismatches, int[] checked) {
+        PsiManager psiManager = PsiManager.getInstance(project);
+        ProjectRootManager.getInstance(project).getFileIndex().iterateContent(file -> {
+            ProgressManager.checkCanceled();
+            if (file.isDirectory() || file.getFileType() != PythonFileType.INSTANCE) {
+                return true;
+            }
+            PsiFile psiFile = psiManager.findFile(file);
+            if (psiFile == null) {
+                return true;
+            }
+            for (PyFunction function : PsiTreeUtil.findChildrenOfType(psiFile, PyFunction.class)) {
+                if (function.getNameIdentifier() == null) {
+                    continue;
+                }
+                checked[0]++;
+                String expected = DigestUtils.sha256Hex(getFunctionText(function));
+                if (!expected.equals(streamHashFunction(function))) {
+                    mismatches.add(file.getPath() + ": " + function.getName());
+                }
+            }
+            return true;
+        });
+    }
+}
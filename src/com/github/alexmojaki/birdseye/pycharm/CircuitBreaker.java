@@ -0,0 +1,104 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+/**
+ * Stops ApiClient from sending requests while the server is unreachable.
+ * <p>
+ * Normally the breaker is CLOSED and requests go through. After several consecutive
+ * failures in a row it becomes OPEN and requests fail immediately without touching
+ * the network. Once the open period has passed it becomes HALF_OPEN and lets exactly
+ * one request through as a probe: if that succeeds the breaker closes again,
+ * otherwise it opens again for twice as long, up to a maximum.
+ */
+class CircuitBreaker {
+
+    enum Status {CLOSED, OPEN, HALF_OPEN}
+
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long MIN_OPEN_MILLIS = 2000;
+    private static final long MAX_OPEN_MILLIS = 60 * 1000;
+
+    private Status status = Status.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openMillis = MIN_OPEN_MILLIS;
+    private long openUntil = 0;
+
+    /**
+     * Returns true if a request may be sent now. If so, exactly one of
+     * recordSuccess, recordFailure or recordAbandoned must be called afterwards.
+     */
+    synchronized boolean allowRequest() {
+        switch (status) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() < openUntil) {
+                    return false;
+                }
+                status = Status.HALF_OPEN;
+                return true;
+            default:
+                // Only the probe is allowed
+                return false;
+        }
+    }
+
+    /**
+     * The server responded, even if it was with an error that isn't its fault.
+     */
+    synchronized void recordSuccess() {
+        status = Status.CLOSED;
+        consecutiveFailures = 0;
+        openMillis = MIN_OPEN_MILLIS;
+    }
+
+    /**
+     * The server couldn't be reached or failed to handle a request.
+     */
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (status == Status.HALF_OPEN) {
+            openMillis = Math.min(openMillis * 2, MAX_OPEN_MILLIS);
+            open();
+        } else if (status == Status.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    /**
+     * The request was cancelled before anything could be learned about the server.
+     * If it was the probe, the next request becomes the probe instead.
+     */
+    synchronized void recordAbandoned() {
+        if (status == Status.HALF_OPEN) {
+            status = Status.OPEN;
+            openUntil = 0;
+        }
+    }
+
+    private void open() {
+        status = Status.OPEN;
+        openUntil = System.currentTimeMillis() + openMillis;
+    }
+
+    synchronized Status status() {
+        return status;
+    }
+
+    /**
+     * A description of the state of the breaker for the settings dialog.
+     */
+    @Override
+    public synchronized String toString() {
+        switch (status) {
+            case CLOSED:
+                return consecutiveFailures == 0 ?
+                        "OK" :
+                        String.format("OK, %d recent failed requests", consecutiveFailures);
+            case OPEN:
+                long seconds = Math.max(0, (openUntil - System.currentTimeMillis() + 999) / 1000);
+                return String.format("server unreachable, requests paused, trying again in %ds", seconds);
+            default:
+                return "checking if the server can be reached again";
+        }
+    }
+}
@@ -24,6 +24,7 @@ import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
 
@@ -79,19 +80,30 @@ public class EyeLineMarkerProvider implements LineMarkerProvider {
     }
 
     /**
-     * Called when one of the gutter icons is clicked. Shows a panel in the birdseye tool window
-     * with a list of calls for the function.
+     * Called when one of the gutter icons is clicked. Requests the list of calls for the function
+     * in the background, then shows it in a panel in the birdseye tool window.
      */
     private void createCallsListPanel(PyFunction psiFunction) {
         final Project project = psiFunction.getProject();
         MyProjectComponent component = MyProjectComponent.getInstance(project);
 
         String hash = hashFunction(psiFunction);
-        ApiClient.CallsByHashResponse response = component.apiClient.listCallsByBodyHash(hash);
+        CompletableFuture<ApiClient.CallsByHashResponse> request =
+                component.apiClient.listCallsByBodyHashAsync(hash);
+        component.setCallsListRequest(request);
+
+        request.thenAcceptAsync(response -> {
+            if (response == null  // indicates an error reaching the server
+                    || !psiFunction.isValid()) {
+                return;
+            }
+            showCallsListPanel(psiFunction, response);
+        }, UI_EXECUTOR);
+    }
 
-        if (response == null) { // indicates an error reaching the server
-            return;
-        }
+    private void showCallsListPanel(PyFunction psiFunction, ApiClient.CallsByHashResponse response) {
+        final Project project = psiFunction.getProject();
+        MyProjectComponent component = MyProjectComponent.getInstance(project);
 
         List<CallMeta> rows = response.calls;
         JComponent centralComponent;
@@ -148,6 +160,7 @@ public class EyeLineMarkerProvider implements LineMarkerProvider {
 
             /* This is primarily called when a user clicks on a row of the table.
              * It opens a panel for investigating the call corresponding to that row.
+             * The call is downloaded in the background, showing a placeholder tab in the meantime.
              */
             openRow = (row) -> {
                 if (row < 0) {
@@ -164,22 +177,55 @@ public class EyeLineMarkerProvider implements LineMarkerProvider {
                     }
                 }
 
+                MyProjectComponent.PendingCall pendingCall = component.pendingCall;
+                if (pendingCall != null && pendingCall.callId.equals(callMeta.id)) {
+                    content = pendingCall.content;
+                }
+
                 ContentManager contentManager = component.contentManager();
 
                 if (content == null) {
-                    Call call = Call.get(callMeta, psiFunction, function);
-                    if (call == null) {  // indicates an error reaching the server
-                        return;
-                    }
-                    JPanel panel = new PanelWithSideButtons(project, call.panel);
                     content = ContentFactory.SERVICE.getInstance()
                             .createContent(
-                                    panel,
+                                    new JBLabel("Loading call..."),
                                     "Call to " + psiFunction.getName(),
                                     false);
-                    call.toolWindowContent = content;
+                    content.setIcon(AllIcons.Process.Step_1);
+
+                    CompletableFuture<ApiClient.CallResponse> request =
+                            component.apiClient.getCallAsync(callMeta.id);
+                    MyProjectComponent.PendingCall pending =
+                            new MyProjectComponent.PendingCall(callMeta.id, content, request);
+                    component.setPendingCall(pending);
                     contentManager.addContent(content);
-                    content.setIcon(AllIcons.General.Run);
+
+                    request.whenCompleteAsync((callResponse, error) -> {
+                        if (!component.finishPendingCall(pending)) {
+                            return;
+                        }
+                        if (error != null) {
+                            // e.g. the response couldn't be decoded
+                            error.printStackTrace();
+                        }
+                        if (callResponse == null  // indicates an error
+                                || !psiFunction.isValid()) {
+                            contentManager.removeContent(pending.content, true);
+                            return;
+                        }
+                        Call call = Call.create(callMeta, callResponse, psiFunction, function);
+                        call.toolWindowContent = pending.content;
+                        pending.content.setComponent(new PanelWithSideButtons(project, call.panel));
+                        pending.content.setIcon(AllIcons.General.Run);
+
+                        // The tab was selected before the call existed.
+                        // Otherwise Call.create has shown the highlighters of a call
+                        // that isn't selected.
+                        if (contentManager.getSelectedContent() == pending.content) {
+                            component.selectCall(call);
+                        } else {
+                            call.hideHighlighters();
+                        }
+                    }, UI_EXECUTOR);
                 }
 
                 contentManager.setSelectedContent(content);
@@ -0,0 +1,111 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.intellij.openapi.project.DumbService;
+import com.intellij.openapi.project.IndexNotReadyException;
+import com.intellij.openapi.project.Project;
+import com.intellij.psi.search.GlobalSearchScope;
+import com.intellij.util.indexing.*;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.jetbrains.python.PythonFileType;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.github.alexmojaki.birdseye.pycharm.Utils.hashFunctionsUncached;
+
+/**
+ * A persistent index from the body hashes of functions (see Utils.hashFunction)
+ * to the Python files containing them, kept up to date by the IDE as files change.
+ * All Python files are indexed, including libraries, since an index can't depend on
+ * which projects are open. projectHashes picks out those in a project.
+ * This lets MyProjectComponent.checkHashes ask the server about every function
+ * in the project in one request, without opening or parsing any files itself.
+ */
+public class FunctionHashIndex extends ScalarIndexExtension<String> {
+
+    static final ID<String, Void> NAME = ID.create("birdseye.FunctionHashIndex");
+
+    @NotNull
+    @Override
+    public ID<String, Void> getName() {
+        return NAME;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<String, Void, FileContent> getIndexer() {
+        return inputData -> {
+            Map<String, Void> result = new HashMap<>();
+            for (String hash : hashFunctionsUncached(inputData.getPsiFile())) {
+                result.put(hash, null);
+            }
+            return result;
+        };
+    }
+
+    @NotNull
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+        return EnumeratorStringDescriptor.INSTANCE;
+    }
+
+    @NotNull
+    @Override
+    public FileBasedIndex.InputFilter getInputFilter() {
+        return new DefaultFileTypeSpecificInputFilter(PythonFileType.INSTANCE);
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+        return true;
+    }
+
+    // Lets processAllKeys in projectHashes use its IdFilter to skip keys
+    // which only come from files outside the project
+    @Override
+    public boolean traceKeyHashToVirtualFileMapping() {
+        return true;
+    }
+
+    // Increase this whenever the hash or what's indexed changes
+    @Override
+    public int getVersion() {
+        return 3;
+    }
+
+    /**
+     * Returns the body hashes of all named functions in the Python files in the content
+     * of the project, i.e. not libraries, or an empty set while indexing is in progress.
+     * This may include a few hashes of functions which have since been edited or deleted.
+     * Must be called in a read action, which may be cancelled.
+     */
+    static Set<String> projectHashes(Project project) {
+        if (DumbService.isDumb(project)) {
+            return Collections.emptySet();
+        }
+
+        // Only keys coming from files in the content of this project are wanted,
+        // not the standard library, installed packages, or other projects
+        IdFilter projectFiles = IdFilter.getProjectIdFilter(project, false);
+
+        Set<String> hashes = new HashSet<>();
+        try {
+            FileBasedIndex.getInstance().processAllKeys(
+                    NAME,
+                    hash -> {
+                        hashes.add(hash);
+                        return true;
+                    },
+                    GlobalSearchScope.projectScope(project),
+                    projectFiles);
+        } catch (IndexNotReadyException e) {
+            return Collections.emptySet();
+        }
+        return hashes;
+    }
+}
@@ -9,6 +9,7 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import static com.github.alexmojaki.birdseye.pycharm.Utils.*;
@@ -28,9 +29,52 @@ public class HideableRangeHighlighter {
     private List<RangeHighlighter> highlighters = new ArrayList<>();
 
     HideableRangeHighlighter(Call.Node node, TextAttributes attributes) {
+        this(node, attributes, true);
+    }
+
+    private HideableRangeHighlighter(Call.Node node, TextAttributes attributes, boolean show) {
         this.node = node;
         this.attributes = attributes;
-        show();
+        if (show) {
+            show();
+        }
+    }
+
+    /**
+     * Creates a highlighter which isn't shown yet, to be passed to update().
+     */
+    static HideableRangeHighlighter hidden(Call.Node node, TextAttributes attributes) {
+        return new HideableRangeHighlighter(node, attributes, false);
+    }
+
+    /**
+     * Hides and shows many highlighters at once. Unlike calling hide() and show()
+     * on each one, this only schedules a single task for all of them.
+     */
+    static void update(Project project,
+                       Collection<HideableRangeHighlighter> toHide,
+                       Collection<HideableRangeHighlighter> toShow) {
+        if (toHide.isEmpty() && toShow.isEmpty()) {
+            return;
+        }
+        List<HideableRangeHighlighter> hide = new ArrayList<>(toHide);
+        List<HideableRangeHighlighter> show = new ArrayList<>(toShow);
+        DumbService.getInstance(project).smartInvokeLater(() -> {
+            List<Editor> editors = activeEditors(project);
+            for (HideableRangeHighlighter highlighter : hide) {
+                highlighter.removeAll(editors);
+            }
+            for (HideableRangeHighlighter highlighter : show) {
+                if (!highlighter.highlighters.isEmpty()) {
+                    continue;
+                }
+                for (Editor editor : editors) {
+                    if (highlighter.canAddFor(editor)) {
+                        highlighter.addNow(editor);
+                    }
+                }
+            }
+        });
     }
 
     /** Create a RangeHighlighter for each editor */
@@ -49,29 +93,32 @@ public class HideableRangeHighlighter {
      * Add a single normal RangeHighlighter to this editor
      */
     void addFor(Editor editor) {
-        RangeMarker rm = node.rangeMarker();
+        if (canAddFor(editor)) {
+            DumbService.getInstance(node.call().project).smartInvokeLater(() -> addNow(editor));
+        }
+    }
 
-        if (!rm.isValid()) {
-            return;
+    private boolean canAddFor(Editor editor) {
+        if (!node.rangeMarker().isValid()) {
+            return false;
         }
 
         Call call = node.call();
         Project project = call.project;
 
-        if (!(call.document().equals(editor.getDocument()) &&
-                project.equals(editor.getProject()))) {
-            return;
-        }
+        return call.document().equals(editor.getDocument()) &&
+                project.equals(editor.getProject());
+    }
 
-        DumbService.getInstance(project).smartInvokeLater(() -> {
-            RangeHighlighter highlighter = editor.getMarkupModel().addRangeHighlighter(
-                    rm.getStartOffset(),
-                    rm.getEndOffset(),
-                    1000000,
-                    attributes,
-                    HighlighterTargetArea.EXACT_RANGE);
-            highlighters.add(highlighter);
-        });
+    private void addNow(Editor editor) {
+        RangeMarker rm = node.rangeMarker();
+        RangeHighlighter highlighter = editor.getMarkupModel().addRangeHighlighter(
+                rm.getStartOffset(),
+                rm.getEndOffset(),
+                1000000,
+                attributes,
+                HighlighterTargetArea.EXACT_RANGE);
+        highlighters.add(highlighter);
     }
 
     /** Destroy all the RangeHighlighters */
@@ -83,18 +130,18 @@ public class HideableRangeHighlighter {
             return;
         }
 
-        DumbService.getInstance(project).smartInvokeLater(() -> {
-            List<Editor> editors = activeEditors(project);
-            for (RangeHighlighter highlighter : highlighters) {
-                highlighter.dispose();
-                for (Editor editor : editors) {
-                    editor.getMarkupModel().removeHighlighter(highlighter);
-                }
+        DumbService.getInstance(project).smartInvokeLater(() -> removeAll(activeEditors(project)));
+    }
 
+    private void removeAll(List<Editor> editors) {
+        for (RangeHighlighter highlighter : highlighters) {
+            highlighter.dispose();
+            for (Editor editor : editors) {
+                editor.getMarkupModel().removeHighlighter(highlighter);
             }
-            highlighters.clear();
-        });
 
+        }
+        highlighters.clear();
     }
 
 
@@ -6,13 +6,84 @@ import com.intellij.ui.SimpleTextAttributes;
 
 import javax.swing.*;
 import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.MutableTreeNode;
+import javax.swing.tree.TreeNode;
+import java.util.Enumeration;
+import java.util.function.Consumer;
 
 public abstract class InspectorTreeNode extends DefaultMutableTreeNode {
     Call.Node node;
     String label;
 
+    /*
+    Values can be huge, e.g. a dict with thousands of nested items,
+    and most of them are never expanded in the inspector.
+    So children are only created when the tree first asks for them,
+    by the loader given to setChildLoader, which adds them to this node.
+    Until then the only thing known is whether there are any.
+     */
+    private Consumer<InspectorTreeNode> childLoader = null;
+    private boolean hasLazyChildren = false;
+
     abstract void render(ColoredTreeCellRenderer renderer);
 
+    void setChildLoader(boolean hasChildren, Consumer<InspectorTreeNode> loader) {
+        hasLazyChildren = hasChildren;
+        childLoader = hasChildren ? loader : null;
+    }
+
+    private void loadChildren() {
+        if (childLoader != null) {
+            Consumer<InspectorTreeNode> loader = childLoader;
+            childLoader = null;
+            loader.accept(this);
+        }
+    }
+
+    @Override
+    public boolean isLeaf() {
+        if (childLoader != null) {
+            return !hasLazyChildren;
+        }
+        return super.isLeaf();
+    }
+
+    @Override
+    public int getChildCount() {
+        loadChildren();
+        return super.getChildCount();
+    }
+
+    @Override
+    public TreeNode getChildAt(int index) {
+        loadChildren();
+        return super.getChildAt(index);
+    }
+
+    @Override
+    public int getIndex(TreeNode child) {
+        loadChildren();
+        return super.getIndex(child);
+    }
+
+    @Override
+    public Enumeration children() {
+        loadChildren();
+        return super.children();
+    }
+
+    @Override
+    public void insert(MutableTreeNode child, int index) {
+        loadChildren();
+        super.insert(child, index);
+    }
+
+    @Override
+    public void removeAllChildren() {
+        childLoader = null;
+        super.removeAllChildren();
+    }
+
     static class Expression extends InspectorTreeNode {
         Icon icon;
         String typeName;
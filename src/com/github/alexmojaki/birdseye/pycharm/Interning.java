@@ -0,0 +1,43 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.List;
+
+/**
+ * Pools of values which are repeated many times within and across calls,
+ * so that each distinct value is only stored once however many calls are open.
+ * Used by CallDecoder and NodeValues when calls are decoded.
+ * <p>
+ * The pools are shared by all projects and only hold weak references,
+ * so values disappear from them once no call uses them.
+ */
+class Interning {
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+    private static final Interner<List<String>> TYPE_NAMES = Interners.newWeakInterner();
+
+    private Interning() {
+    }
+
+    /**
+     * For reprs such as "None", "0" or "[]".
+     */
+    static String string(String s) {
+        return STRINGS.intern(s);
+    }
+
+    /**
+     * For the type_names of a call, which are usually identical for all calls
+     * of a function, or even all calls recorded by the same process.
+     */
+    static List<String> typeNames(String[] typeNames) {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        for (String typeName : typeNames) {
+            builder.add(string(typeName));
+        }
+        return TYPE_NAMES.intern(builder.build());
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import gnu.trove.TIntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * The iterations of all loops in a call, i.e. loop_iterations in Call.CallData.
+ * <p>
+ * In the JSON this maps the tree index of each loop that ran to a list of iterations,
+ * each of which has an index and the same kind of mapping for the loops nested inside it.
+ * Here a 'run' is one such list, i.e. one execution of a loop statement from start to finish,
+ * either directly in the function or within a particular iteration of an enclosing loop.
+ * <p>
+ * Instead of an object per iteration and a map per nested loop, everything is stored
+ * in a few int arrays, with ids of runs and iterations being indices of those arrays.
+ * The iterations of each run have consecutive ids, as do the runs within each iteration,
+ * so both can be described by a first id and a count. Built by Builder as CallDecoder
+ * reads the JSON.
+ */
+class LoopTree {
+
+    // Pass this as the iteration to firstRun/runCount to get the runs
+    // which aren't inside any loop
+    static final int ROOT = -1;
+
+    static final LoopTree EMPTY = new Builder().build();
+
+    // The tree index of the loop statement of each run
+    private final int[] runLoops;
+
+    // The iterations of run r have ids runIterations[r] to runIterations[r + 1] - 1
+    private final int[] runIterations;
+
+    // The index (iteration number) of each iteration
+    private final int[] iterationIndices;
+
+    // The runs inside iteration i have ids childRuns[i + 1] to childRuns[i + 1] + childRunCounts[i + 1] - 1,
+    // and position 0 is for ROOT
+    private final int[] childRuns;
+    private final int[] childRunCounts;
+
+    private LoopTree(int[] runLoops, int[] runIterations, int[] iterationIndices,
+                     int[] childRuns, int[] childRunCounts) {
+        this.runLoops = runLoops;
+        this.runIterations = runIterations;
+        this.iterationIndices = iterationIndices;
+        this.childRuns = childRuns;
+        this.childRunCounts = childRunCounts;
+    }
+
+    int firstRun(int iteration) {
+        return childRuns[iteration + 1];
+    }
+
+    int runCount(int iteration) {
+        return childRunCounts[iteration + 1];
+    }
+
+    /**
+     * The tree index of the loop statement of the given run.
+     */
+    int loop(int run) {
+        return runLoops[run];
+    }
+
+    /**
+     * The id of the i'th iteration kept for the given run.
+     */
+    int iteration(int run, int i) {
+        return runIterations[run] + i;
+    }
+
+    /**
+     * The indices of the iterations kept for the given run, e.g. [0, 1, 2, 97, 98, 99].
+     */
+    int[] indices(int run) {
+        return Arrays.copyOfRange(iterationIndices, runIterations[run], runIterations[run + 1]);
+    }
+
+    /**
+     * A rough estimate of how much memory this takes, see Call.sizeBytes.
+     */
+    long estimateSizeBytes() {
+        return 5 * 16 + 4L * (runLoops.length + runIterations.length + iterationIndices.length
+                + childRuns.length + childRunCounts.length);
+    }
+
+    /**
+     * Collects runs and iterations in the order they appear in the JSON, where the iterations
+     * of a run are interleaved with those of the loops nested inside them. Each run points
+     * to the iteration containing it and each iteration points to its run, and build()
+     * uses those pointers to group them into the layout described above.
+     */
+    static class Builder {
+        private final TIntArrayList runLoops = new TIntArrayList();
+        private final TIntArrayList runParents = new TIntArrayList();
+        private final TIntArrayList iterationRuns = new TIntArrayList();
+        private final TIntArrayList iterationIndices = new TIntArrayList();
+
+        /**
+         * Returns the id of a new run of the given loop inside the given iteration
+         * (an id returned by addIteration, or ROOT).
+         */
+        int addRun(int loopTreeIndex, int parentIteration) {
+            runLoops.add(loopTreeIndex);
+            runParents.add(parentIteration);
+            return runLoops.size() - 1;
+        }
+
+        /**
+         * Returns the id of a new iteration of the given run. Its index is 0 until setIndex is called.
+         */
+        int addIteration(int run) {
+            iterationRuns.add(run);
+            iterationIndices.add(0);
+            return iterationRuns.size() - 1;
+        }
+
+        void setIndex(int iteration, int index) {
+            iterationIndices.set(iteration, index);
+        }
+
+        LoopTree build() {
+            int numRuns = runLoops.size();
+            int numIterations = iterationRuns.size();
+
+            // Give the runs new ids grouped by their parent iteration,
+            // keeping the original order within each group.
+            // Group 0 is ROOT, group i + 1 is iteration i (in the original ids).
+            int[] childRuns = new int[numIterations + 1];
+            int[] childRunCounts = new int[numIterations + 1];
+            for (int r = 0; r < numRuns; r++) {
+                childRunCounts[runParents.get(r) + 1]++;
+            }
+            for (int g = 1; g <= numIterations; g++) {
+                childRuns[g] = childRuns[g - 1] + childRunCounts[g - 1];
+            }
+            int[] next = childRuns.clone();
+            int[] newRunIds = new int[numRuns];
+            int[] newRunLoops = new int[numRuns];
+            for (int r = 0; r < numRuns; r++) {
+                int id = next[runParents.get(r) + 1]++;
+                newRunIds[r] = id;
+                newRunLoops[id] = runLoops.get(r);
+            }
+
+            // Same for the iterations, grouped by their run (in the new ids)
+            int[] runIterations = new int[numRuns + 1];
+            for (int i = 0; i < numIterations; i++) {
+                runIterations[newRunIds[iterationRuns.get(i)] + 1]++;
+            }
+            for (int r = 0; r < numRuns; r++) {
+                runIterations[r + 1] += runIterations[r];
+            }
+            next = Arrays.copyOf(runIterations, numRuns);
+            int[] newIterationIds = new int[numIterations];
+            int[] newIterationIndices = new int[numIterations];
+            for (int i = 0; i < numIterations; i++) {
+                int id = next[newRunIds[iterationRuns.get(i)]]++;
+                newIterationIds[i] = id;
+                newIterationIndices[id] = iterationIndices.get(i);
+            }
+
+            // The groups of runs were made with the original iteration ids,
+            // so move them to positions for the new ones
+            int[] newChildRuns = new int[numIterations + 1];
+            int[] newChildRunCounts = new int[numIterations + 1];
+            newChildRuns[0] = childRuns[0];
+            newChildRunCounts[0] = childRunCounts[0];
+            for (int i = 0; i < numIterations; i++) {
+                newChildRuns[newIterationIds[i] + 1] = childRuns[i + 1];
+                newChildRunCounts[newIterationIds[i] + 1] = childRunCounts[i + 1];
+            }
+
+            return new LoopTree(newRunLoops, runIterations, newIterationIndices,
+                    newChildRuns, newChildRunCounts);
+        }
+    }
+}
@@ -13,6 +13,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionListener;
 import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * This provides the UI for changing settings.
@@ -22,6 +24,7 @@ public class MyConfigurable implements Configurable {
     private LabeledField dbPanel;
     private LabeledField portPanel;
     private ButtonGroup runServerRadioGroup;
+    private List<LabeledField> numberPanels;
     private MyProjectComponent projectComponent;
 
     MyConfigurable(Project project) {
@@ -73,6 +76,7 @@ public class MyConfigurable implements Configurable {
         JLabel errorLabel = new JBLabel();
         panel.add(statusLabel);
         panel.add(errorLabel);
+        panel.add(new JBLabel("Requests to the server: " + projectComponent.apiClient.circuitBreakerStatus()));
         JButton restartButton = null;
 
         if (state().runServer) {
@@ -118,6 +122,22 @@ public class MyConfigurable implements Configurable {
                 40,
                 panel);
 
+        numberPanels = Arrays.asList(
+                numberField("Connection timeout (milliseconds): ", "connectTimeoutMillis", panel),
+                numberField("Read timeout (milliseconds): ", "readTimeoutMillis", panel),
+                numberField("Maximum connections to the server: ", "maxConnectionsPerRoute", panel),
+                numberField("Maximum size of calls cached on disk (MB): ", "callCacheSizeMb", panel),
+                numberField("Maximum size of open calls in memory (MB): ", "openCallsMemoryMb", panel));
+
+        ApiClient apiClient = projectComponent.apiClient;
+        panel.add(new JBLabel("Connections: " + apiClient.connectionStats()));
+        panel.add(new JBLabel("Data: " + apiClient.transferStats()));
+        panel.add(new JBLabel("Duplicate requests avoided: " + apiClient.deduplicatedCount()));
+        List<ApiClient.Transfer> transfers = apiClient.recentTransfers();
+        if (!transfers.isEmpty()) {
+            panel.add(new JBLabel("Last response: " + transfers.get(0)));
+        }
+
         JButton finalRestartButton = restartButton;
 
         ActionListener actionListener = e -> {
@@ -141,6 +161,15 @@ public class MyConfigurable implements Configurable {
         return panel;
     }
 
+    private LabeledField numberField(String labelText, String stateFieldName, JPanel panel) {
+        return new LabeledField(
+                new JNumberTextField(),
+                labelText,
+                stateFieldName,
+                8,
+                panel);
+    }
+
     /**
      * True if the user has chosen the option to run the server in this settings dialog,
      * as opposed to state().runServer which is the current confirmed setting outside
@@ -155,6 +184,7 @@ public class MyConfigurable implements Configurable {
         return (portPanel.isModified() ||
                 dbPanel.isModified() ||
                 urlPanel.isModified() ||
+                numberPanels.stream().anyMatch(LabeledField::isModified) ||
                 runServerChosen() != state().runServer);
     }
 
@@ -171,16 +201,30 @@ public class MyConfigurable implements Configurable {
         } catch (NumberFormatException e) {
             throw portError;
         }
+        for (LabeledField numberPanel : numberPanels) {
+            String text = numberPanel.textField.getText();
+            ConfigurationException numberError = new ConfigurationException(
+                    numberPanel.label.getText().replace(": ", "") + " must be a positive integer");
+            try {
+                if (Integer.parseInt(text) <= 0) {
+                    throw numberError;
+                }
+            } catch (NumberFormatException e) {
+                throw numberError;
+            }
+        }
         portPanel.save();
         dbPanel.save();
         urlPanel.save();
+        numberPanels.forEach(LabeledField::save);
         state().runServer = runServerChosen();
+        projectComponent.apiClient.applySettings();
         MyApplicationComponent.getInstance().updateServers();
     }
 
     /**
      * A panel containing a text field and an associated label,
-     * which manages one String field in State named stateFieldName.
+     * which manages one String or int field in State named stateFieldName.
      */
     class LabeledField extends JPanel {
         private JTextField textField;
@@ -217,7 +261,12 @@ public class MyConfigurable implements Configurable {
 
         private void save() {
             try {
-                stateField().set(state(), textField.getText());
+                Field field = stateField();
+                if (field.getType() == int.class) {
+                    field.setInt(state(), Integer.parseInt(textField.getText()));
+                } else {
+                    field.set(state(), textField.getText());
+                }
             } catch (NoSuchFieldException | IllegalAccessException e) {
                 throw new RuntimeException(e);
             }
@@ -225,7 +274,7 @@ public class MyConfigurable implements Configurable {
 
         private String stateValue() {
             try {
-                return (String) stateField().get(state());
+                return String.valueOf(stateField().get(state()));
             } catch (NoSuchFieldException | IllegalAccessException e) {
                 throw new RuntimeException(e);
             }
@@ -1,6 +1,6 @@
 package com.github.alexmojaki.birdseye.pycharm;
 
-import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.ProjectTopics;
 import com.intellij.execution.ExecutionException;
 import com.intellij.notification.Notification;
 import com.intellij.notification.NotificationListener;
@@ -9,29 +9,39 @@ import com.intellij.notification.Notifications;
 import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.AbstractProjectComponent;
 import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
 import com.intellij.openapi.editor.RangeMarker;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.event.DocumentListener;
+import com.intellij.openapi.fileTypes.FileTypeManager;
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils;
 import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.projectRoots.Sdk;
+import com.intellij.openapi.roots.ModuleRootEvent;
+import com.intellij.openapi.roots.ModuleRootListener;
 import com.intellij.openapi.roots.ProjectRootManager;
 import com.intellij.openapi.util.IconLoader;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.openapi.wm.ToolWindowAnchor;
 import com.intellij.openapi.wm.ToolWindowManager;
 import com.intellij.psi.PsiDocumentManager;
-import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
-import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentManager;
 import com.intellij.ui.content.ContentManagerAdapter;
 import com.intellij.ui.content.ContentManagerEvent;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.messages.MessageBusConnection;
+import com.jetbrains.python.PythonFileType;
 import com.jetbrains.python.packaging.*;
-import com.jetbrains.python.psi.PyFunction;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -39,6 +49,9 @@ import javax.swing.*;
 import javax.swing.event.HyperlinkEvent;
 import java.util.*;
 import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -66,6 +79,7 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
     @Override
     public void loadState(@NotNull State state) {
         this.state = state;
+        apiClient.applySettings();
     }
 
     /**
@@ -86,14 +100,104 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
     private Content callsListContent = null;
     ApiClient apiClient;
 
+    /**
+     * The request for the calls list most recently requested by clicking an eye icon,
+     * cancelled if another eye icon is clicked before it completes.
+     */
+    private Future<?> callsListRequest = null;
+
+    /**
+     * A call being downloaded in the background after the user clicked on it in the
+     * calls list, shown in the meantime as a placeholder tab. There is at most one:
+     * clicking on another call or closing the placeholder tab cancels the download.
+     */
+    static class PendingCall {
+        final String callId;
+        final Content content;
+        final Future<?> request;
+
+        PendingCall(String callId, Content content, Future<?> request) {
+            this.callId = callId;
+            this.content = content;
+            this.request = request;
+        }
+    }
+
+    PendingCall pendingCall = null;
+
+    // Unloaded calls being retrieved again, see reloadCall
+    private final Set<Call> reloadingCalls = new HashSet<>();
+
     /**
      * Whether or not the tool window is visible
      */
     private boolean isActive = false;
 
-    Timer timer = new Timer();
+    private final Timer timer = new Timer();
+
+    // Set when the project closes, after which nothing more may be scheduled
+    // on the cancelled timer. Guarded by timer.
+    private boolean timerCancelled = false;
+
     ProcessMonitor processMonitor;
 
+    /**
+     * Waits for the server to report new calls, see watchForChanges.
+     */
+    private Thread changesThread = null;
+
+    /**
+     * True while the server supports waiting for changes and is responding,
+     * in which case checkHashes only does a full refresh when serverChanged is true.
+     * Otherwise it does one every FULL_REFRESH_MILLIS, whether the server doesn't have
+     * the changes endpoint at all (changesUnsupported), e.g. the standard birdseye server,
+     * or can't be reached.
+     */
+    private volatile boolean pushSupported = false;
+    private volatile boolean changesUnsupported = false;
+    private volatile boolean serverChanged = true;
+
+    /**
+     * True if the numbers of calls from the last full refresh are taken to be current,
+     * either because the server has reported any changes since then through watchForChanges,
+     * or because it can't report changes (changesUnsupported) so polled counts are the best
+     * there is. See hashCountsCurrent.
+     */
+    private volatile boolean countsCurrent = false;
+
+    private static final long FULL_REFRESH_MILLIS = 30 * 1000;
+    private long lastFullRefresh = 0;
+
+    /**
+     * The number of calls for each hash in the open editors or the project that the server
+     * has been asked about, or -1 if the hash isn't in the database.
+     * Only used by checkHashes, which never runs concurrently with itself.
+     */
+    private final Map<String, Integer> knownCounts = new HashMap<>();
+
+    /**
+     * Hashes in knownCounts whose counts may be out of date, because full refreshes
+     * only ask about functions in open editors. They're asked about again
+     * when their files are opened. Read by hashCountsCurrent in other threads.
+     */
+    private final Set<String> staleHashes = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The hashes of all functions in the project according to FunctionHashIndex.
+     * Only used by checkHashes, which collects them again when projectHashesChanged is set.
+     */
+    private Set<String> projectHashes = Collections.emptySet();
+
+    /**
+     * Set when the keys of FunctionHashIndex may have changed, i.e. when indexing finishes,
+     * Python files change on disk, or the project's roots change. See watchProjectHashes.
+     */
+    private volatile boolean projectHashesChanged = true;
+
+    // Runs the background part of checkHashes, one check at a time
+    private static final ExecutorService HASH_EXECUTOR =
+            AppExecutorUtil.createBoundedApplicationPoolExecutor("birdseye hashes", 1);
+
     static MyProjectComponent getInstance(Project project) {
         return project.getComponent(MyProjectComponent.class);
     }
@@ -108,7 +212,7 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
      * Run checkHashes 2 seconds from now in the correct thread
      */
     private void scheduleHashCheck() {
-        timer.schedule(new TimerTask() {
+        schedule(new TimerTask() {
             @Override
             public void run() {
                 DumbService.getInstance(myProject).smartInvokeLater(MyProjectComponent.this::checkHashes);
@@ -116,60 +220,302 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
         }, 2000);
     }
 
-    private void checkHashes() {
-        List<Editor> activeEditors = activeEditors(myProject);
-
-        Set<String> newFunctionHashes = new HashSet<>();
-        PsiRecursiveElementWalkingVisitor visitor = new PsiRecursiveElementWalkingVisitor() {
-            @Override
-            protected void elementFinished(PsiElement element) {
-                if (!(element instanceof PyFunction)) {
-                    return;
-                }
-                PyFunction function = (PyFunction) element;
-                if (function.getNameIdentifier() == null) {
-                    return;
-                }
-
-                String hash = hashFunction(function);
-                newFunctionHashes.add(hash);
+    /**
+     * Schedules the task on the timer unless the project has been closed,
+     * since repeating tasks may try to reschedule themselves after that.
+     */
+    void schedule(TimerTask task, long delay) {
+        synchronized (timer) {
+            if (!timerCancelled) {
+                timer.schedule(task, delay);
             }
-        };
+        }
+    }
+
+    private void checkHashes() {
+        List<Document> documents = mapToList(activeEditors(myProject), Editor::getDocument);
 
         // This function happens in the EventDispatchThread (EDT), which shouldn't be held up,
         // especially for checking the server. We only needed the EDT
         // for the list of active editors
-        new Thread(() -> {
+        HASH_EXECUTOR.execute(() -> {
+            boolean projectOpen = true;
             try {
                 // Collect function body hashes for all functions in all editors
-                ReadAction.run(() -> {
-                    for (Editor editor : activeEditors) {
-                        PsiFile psiFile = PsiDocumentManager.getInstance(myProject)
-                                .getPsiFile(editor.getDocument());
-                        visitor.visitElement(psiFile);
+                Set<String> newFunctionHashes = new HashSet<>();
+                Map<Document, Set<String>> documentHashes = new HashMap<>();
+                for (Document document : documents) {
+                    Set<String> hashes = collectHashes(document);
+                    documentHashes.put(document, hashes);
+                    newFunctionHashes.addAll(hashes);
+                    if (myProject.isDisposed()) {
+                        projectOpen = false;
+                        return;
+                    }
+                }
+
+                // Functions in the rest of the project, found by FunctionHashIndex,
+                // are asked about once so that eye icons are already known when their
+                // files are opened. Walking the index is only worth doing when it has changed.
+                if (projectHashesChanged) {
+                    // Reset this first so that a change while collecting is not missed
+                    projectHashesChanged = false;
+                    projectHashes = collectProjectHashes();
+                }
+
+                // Usually only hashes that the server hasn't been asked about yet,
+                // i.e. functions that have been opened, edited, or added to the project, are sent.
+                // A full refresh asks about those in open editors again to find out about new calls.
+                // If the server tells us when it has new calls, that's only needed when it has.
+                long now = System.currentTimeMillis();
+                boolean fullRefresh;
+                if (pushSupported) {
+                    fullRefresh = serverChanged;
+                } else {
+                    fullRefresh = now - lastFullRefresh >= FULL_REFRESH_MILLIS;
+                }
+                Set<String> allHashes = new HashSet<>(newFunctionHashes);
+                allHashes.addAll(projectHashes);
+
+                Set<String> queryHashes = new HashSet<>(newFunctionHashes);
+                if (fullRefresh) {
+                    // Reset this before the request so that a change during it is not missed
+                    serverChanged = false;
+
+                    // The counts of functions which aren't open may now be outdated
+                    for (String hash : knownCounts.keySet()) {
+                        if (!newFunctionHashes.contains(hash)) {
+                            staleHashes.add(hash);
+                        }
+                    }
+                } else {
+                    queryHashes.removeIf(hash -> knownCounts.containsKey(hash) && !staleHashes.contains(hash));
+                }
+                for (String hash : projectHashes) {
+                    if (!knownCounts.containsKey(hash)) {
+                        queryHashes.add(hash);
+                    }
+                }
+
+                if (!queryHashes.isEmpty()) {
+                    // Ask the server which of those body hashes are in the database
+                    ApiClient.HashPresentItem[] items = apiClient.getBodyHashesPresent(queryHashes);
+                    if (items == null) {
+                        // Error, try again next time
+                        if (fullRefresh) {
+                            serverChanged = true;
+                        }
+                        return;
+                    }
+                    if (fullRefresh) {
+                        lastFullRefresh = now;
 
+                        // If the server changed during the request, the counts may be outdated
+                        countsCurrent = pushSupported ? !serverChanged : changesUnsupported;
                     }
-                });
+                    for (String hash : queryHashes) {
+                        knownCounts.put(hash, -1);
+                    }
+                    for (ApiClient.HashPresentItem item : items) {
+                        knownCounts.put(item.hash, item.count);
+                    }
+                    staleHashes.removeAll(queryHashes);
+                }
 
-                // Ask the server which of those body hashes are in the database
-                // Convert the result to a map the same structure as functionHashes
-                Map<String, Boolean> newFunctionHashesMap =
-                        Arrays.stream(apiClient.getBodyHashesPresent(newFunctionHashes))
-                                .collect(Collectors.toMap(
-                                        i -> i.hash,
-                                        i -> i.count > 0));
+                // Forget functions that are no longer open or in the project
+                knownCounts.keySet().retainAll(allHashes);
+                staleHashes.retainAll(allHashes);
+
+                // Convert the known counts to a map the same structure as functionHashes
+                Map<String, Boolean> newFunctionHashesMap = knownCounts.entrySet().stream()
+                        .filter(e -> e.getValue() >= 0)
+                        .collect(Collectors.toMap(
+                                Map.Entry::getKey,
+                                e -> e.getValue() > 0));
 
                 // If any changes are detected, trigger a line marker pass in the IDE
-                // to refresh the birdseye icons shown by EyeLineMarkerProvider
+                // to refresh the birdseye icons shown by EyeLineMarkerProvider,
+                // only in the files containing the functions whose icons changed
                 if (!(newFunctionHashesMap.equals(functionHashes))) {
+                    Set<String> changedHashes = new HashSet<>(functionHashes.keySet());
+                    changedHashes.addAll(newFunctionHashesMap.keySet());
+                    Map<String, Boolean> oldFunctionHashesMap = functionHashes;
+                    changedHashes.removeIf(hash -> Objects.equals(
+                            oldFunctionHashesMap.get(hash),
+                            newFunctionHashesMap.get(hash)));
+                    List<Document> changedDocuments = filterToList(
+                            documentHashes.keySet(),
+                            document -> !Collections.disjoint(documentHashes.get(document), changedHashes));
+
                     functionHashes = newFunctionHashesMap;
-                    DaemonCodeAnalyzer.getInstance(myProject).restart();
+                    ReadAction.run(() -> {
+                        if (!myProject.isDisposed()) {
+                            restartAnalysis(myProject, changedDocuments);
+                        }
+                    });
                 }
             } finally {
                 // Check again in 2 seconds, regardless of errors
-                scheduleHashCheck();
+                if (projectOpen) {
+                    scheduleHashCheck();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the body hashes of the named functions in the file of the document.
+     * Each file gets its own read action so that a huge file doesn't hold up the IDE,
+     * see runInReadActionYieldingToWrites. Called in HASH_EXECUTOR.
+     */
+    private Set<String> collectHashes(Document document) {
+        Set<String> hashes = new HashSet<>();
+        runInReadActionYieldingToWrites(() -> {
+            hashes.clear();
+            if (myProject.isDisposed()) {
+                return;
+            }
+            PsiFile psiFile = PsiDocumentManager.getInstance(myProject).getPsiFile(document);
+            if (psiFile != null) {
+                hashes.addAll(hashFunctions(psiFile));
+            }
+        });
+        return hashes;
+    }
+
+    /**
+     * Returns the body hashes of the named functions in all Python files in the project
+     * from FunctionHashIndex, or an empty set while the index isn't ready
+     * (projectHashesChanged is set again when it is). Called in HASH_EXECUTOR.
+     */
+    private Set<String> collectProjectHashes() {
+        Set<String> hashes = new HashSet<>();
+        runInReadActionYieldingToWrites(() -> {
+            hashes.clear();
+            if (myProject.isDisposed()) {
+                return;
             }
-        }).start();
+            hashes.addAll(FunctionHashIndex.projectHashes(myProject));
+        });
+        return hashes;
+    }
+
+    /**
+     * Runs the action in a read action which is cancelled as soon as a write action
+     * (e.g. the user typing) is waiting, so that it doesn't block the write action.
+     * It's then run again from scratch once the write action is done, until it completes.
+     */
+    private static void runInReadActionYieldingToWrites(Runnable action) {
+        while (!ProgressIndicatorUtils.runInReadActionWithWriteActionPriority(action)) {
+            ProgressIndicatorUtils.yieldToPendingWriteActions();
+        }
+    }
+
+    /**
+     * True if the number of calls for the hash most recently received from the server
+     * (see ApiClient.getBodyHashesPresent) can be trusted to still be correct,
+     * so that CallsListCache doesn't have to ask the server whether a list has changed.
+     * Not while the server can't be reached, and not for functions that weren't open
+     * during the last full refresh. If the server can't report changes, the counts
+     * of the last full refresh are used, so a new call may only appear in the list
+     * after the next one.
+     */
+    boolean hashCountsCurrent(String hash) {
+        return countsCurrent && !staleHashes.contains(hash);
+    }
+
+    /**
+     * Sets projectHashesChanged whenever the keys of FunctionHashIndex may have changed.
+     * Changes in open editors don't need this, since checkHashes hashes those itself.
+     */
+    private void watchProjectHashes() {
+        MessageBusConnection connection = myProject.getMessageBus().connect(myProject);
+        connection.subscribe(DumbService.DUMB_MODE, new DumbService.DumbModeListener() {
+            @Override
+            public void enteredDumbMode() {
+            }
+
+            @Override
+            public void exitDumbMode() {
+                projectHashesChanged = true;
+            }
+        });
+        connection.subscribe(ProjectTopics.PROJECT_ROOTS, new ModuleRootListener() {
+            @Override
+            public void rootsChanged(ModuleRootEvent event) {
+                projectHashesChanged = true;
+            }
+        });
+        connection.subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+            @Override
+            public void after(@NotNull List<? extends VFileEvent> events) {
+                FileTypeManager fileTypeManager = FileTypeManager.getInstance();
+                for (VFileEvent event : events) {
+                    VirtualFile file = event.getFile();
+
+                    // Deleting, moving or renaming a directory or file can remove Python files
+                    if (file == null
+                            || file.isDirectory()
+                            || event instanceof VFilePropertyChangeEvent
+                            || fileTypeManager.getFileTypeByFileName(file.getName()) == PythonFileType.INSTANCE) {
+                        projectHashesChanged = true;
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs in changesThread for the lifetime of the project, repeatedly making long poll
+     * requests to the server which complete when the database gains calls, and setting
+     * serverChanged for checkHashes. If the server is too old to support this or can't
+     * be reached, checkHashes falls back to polling in the meantime.
+     */
+    private void watchForChanges() {
+        long version = -1;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                ApiClient.ChangesResponse response;
+                try {
+                    response = apiClient.waitForChanges(version);
+                } catch (RuntimeException e) {
+                    // A bug or an unexpected response shouldn't end this thread for good,
+                    // leaving checkHashes waiting for changes that are never reported
+                    e.printStackTrace();
+                    response = null;
+                }
+                if (response == null) {
+                    // Error, probably the server isn't running (yet)
+                    pushSupported = false;
+                    changesUnsupported = false;
+                    countsCurrent = false;
+                    version = -1;
+                    Thread.sleep(2000);
+                } else if (!response.supported) {
+                    // Check occasionally in case the server is upgraded.
+                    // Counts from a full refresh while it was already known
+                    // to be unsupported are still as current as they can be.
+                    if (!changesUnsupported) {
+                        countsCurrent = false;
+                    }
+                    pushSupported = false;
+                    changesUnsupported = true;
+                    version = -1;
+                    Thread.sleep(60 * 1000);
+                } else {
+                    if (response.version != version) {
+                        version = response.version;
+                        countsCurrent = false;
+                        serverChanged = true;
+                    }
+                    pushSupported = true;
+                    changesUnsupported = false;
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // The project was closed
+        }
     }
 
     /**
@@ -212,6 +558,10 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
                  */
                 @Override
                 public void contentRemoved(ContentManagerEvent event) {
+                    if (pendingCall != null && pendingCall.content.equals(event.getContent())) {
+                        cancelPendingCall();
+                    }
+
                     Call call = getCall(event);
                     if (call != null) {
                         calls.remove(call);
@@ -231,21 +581,7 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
                  */
                 @Override
                 public void selectionChanged(ContentManagerEvent event) {
-                    if (calls.size() > 1) {
-                        calls.get(0).hideHighlighters();
-                    }
-
-                    Call call = getCall(event);
-                    if (call != null) {
-
-                        // Move call to the beginning of calls
-                        calls.remove(call);
-                        calls.add(0, call);
-
-                        call.showHighlighters();
-                    }
-
-                    updateAllThings();
+                    selectCall(getCall(event));
                 }
             });
 
@@ -255,12 +591,99 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
         return toolWindow.getContentManager();
     }
 
+    /**
+     * Show the given call (if any) in the editor in place of the previously selected one.
+     */
+    void selectCall(@Nullable Call call) {
+        Call previousCall = currentCall();
+        if (calls.size() > 1) {
+            calls.get(0).hideHighlighters();
+        }
+
+        if (call != null) {
+
+            // Move call to the beginning of calls
+            calls.remove(call);
+            calls.add(0, call);
+
+            call.showHighlighters();
+
+            if (call.isUnloaded()) {
+                reloadCall(call);
+            }
+        }
+
+        enforceMemoryBudget();
+        updateAllThings(Arrays.asList(previousCall, currentCall()));
+    }
+
+    /**
+     * Unloads the least recently selected calls (see Call.unload) until the total
+     * estimated size of the loaded calls is within the budget in the settings.
+     * The currently selected call is always kept.
+     */
+    private void enforceMemoryBudget() {
+        long budget = state.openCallsMemoryMb * 1024L * 1024L;
+        long total = 0;
+        for (int i = 0; i < calls.size(); i++) {
+            Call call = calls.get(i);
+            if (call.isUnloaded()) {
+                continue;
+            }
+            if (i > 0 && total + call.sizeBytes > budget) {
+                call.unload();
+            } else {
+                total += call.sizeBytes;
+            }
+        }
+    }
+
+    /**
+     * Retrieves the data of an unloaded call again, usually from the CallCache
+     * rather than the server, and shows it if the call is still selected.
+     * If that fails the call is closed.
+     */
+    private void reloadCall(Call call) {
+        if (!reloadingCalls.add(call)) {
+            return;
+        }
+        apiClient.getCallAsync(call.meta.id).whenCompleteAsync((callResponse, error) -> {
+            reloadingCalls.remove(call);
+
+            // The call may have been closed in the meantime
+            if (!calls.contains(call) || !call.isUnloaded()) {
+                return;
+            }
+
+            // Without its data the call can't show anything, so close it
+            // rather than leaving an empty tab
+            if (callResponse == null) {
+                if (error != null) {
+                    error.printStackTrace();
+                }
+                contentManager().removeContent(call.toolWindowContent, true);
+                return;
+            }
+            call.reload(callResponse);
+            if (currentCall() == call) {
+                updateAllThings(Collections.singletonList(call));
+            } else {
+                call.hideHighlighters();
+            }
+        }, UI_EXECUTOR);
+    }
+
     /**
      * Make the IDE update displays of highlighters, the gutter, etc.
+     * Line markers are only recalculated in the files of the given calls
+     * (which may include nulls), i.e. those whose loop arrows may have changed.
      */
-    private void updateAllThings() {
-        DaemonCodeAnalyzer.getInstance(myProject).restart();
+    private void updateAllThings(Collection<Call> changedCalls) {
+        List<Document> documents = mapToList(
+                filterToList(changedCalls, Objects::nonNull),
+                Call::document);
         DumbService.getInstance(myProject).smartInvokeLater(() -> {
+            restartAnalysis(myProject, documents);
             for (Editor editor : activeEditors(myProject)) {
                 editor.getComponent().revalidate();
                 editor.getComponent().repaint();
@@ -273,7 +696,7 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
      * Only show birdseye stuff in the editor when it's open.
      */
     private void scheduleActiveCheck(ToolWindow toolWindow) {
-        timer.schedule(new TimerTask() {
+        schedule(new TimerTask() {
             @Override
             public void run() {
                 try {
@@ -291,8 +714,12 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
                                 call.hideHighlighters();
                             }
                         }
+
+                        // The arrows of the first call are shown or hidden
+                        updateAllThings(calls.isEmpty() ?
+                                Collections.emptyList() :
+                                Collections.singletonList(calls.get(0)));
                     });
-                    updateAllThings();
                 } finally {
                     scheduleActiveCheck(toolWindow);
                 }
@@ -339,6 +766,50 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
         return result;
     }
 
+    void setCallsListRequest(Future<?> request) {
+        if (callsListRequest != null) {
+            callsListRequest.cancel(true);
+        }
+        callsListRequest = request;
+    }
+
+    /**
+     * Start showing a call being downloaded, cancelling any previous download.
+     */
+    void setPendingCall(PendingCall pending) {
+        cancelPendingCall();
+        pendingCall = pending;
+    }
+
+    /**
+     * Stop downloading the pending call, if any, and close its placeholder tab.
+     */
+    void cancelPendingCall() {
+        PendingCall pending = pendingCall;
+        if (pending == null) {
+            return;
+        }
+        pendingCall = null;
+        pending.request.cancel(true);
+        ContentManager contentManager = pending.content.getManager();
+        if (contentManager != null) {
+            contentManager.removeContent(pending.content, true);
+        }
+    }
+
+    /**
+     * Called when the download of a pending call has finished.
+     * Returns false if the call is no longer wanted, i.e. it has been
+     * cancelled or superseded by another call.
+     */
+    boolean finishPendingCall(PendingCall pending) {
+        if (pendingCall != pending) {
+            return false;
+        }
+        pendingCall = null;
+        return true;
+    }
+
     void setCallsListContent(Content content) {
         ContentManager contentManager = contentManager();
         if (callsListContent != null) {
@@ -376,8 +847,13 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
     public void projectOpened() {
         MyApplicationComponent.getInstance().updateServers();
 
+        watchProjectHashes();
         scheduleHashCheck();
 
+        changesThread = new Thread(this::watchForChanges, "birdseye changes");
+        changesThread.setDaemon(true);
+        changesThread.start();
+
         // Hide exception highlighters for nodes if their code changes
         EditorFactory.getInstance().getEventMulticaster().addDocumentListener(new DocumentListener() {
             @Override
@@ -386,7 +862,7 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
                 if (call == null || !event.getDocument().equals(call.document())) {
                     return;
                 }
-                for (HideableRangeHighlighter highlighter : call.exceptionHighlighters) {
+                for (HideableRangeHighlighter highlighter : call.exceptionHighlighters.values()) {
                     if (highlighter.node.isRangeInvalid()) {
                         highlighter.hide();
                     } else {
@@ -399,10 +875,24 @@ public class MyProjectComponent extends AbstractProjectComponent implements Pers
 
     @Override
     public void projectClosed() {
+        synchronized (timer) {
+            timerCancelled = true;
+            timer.cancel();
+        }
+        if (changesThread != null) {
+            // Closing apiClient below also ends a request in progress
+            changesThread.interrupt();
+        }
+        setCallsListRequest(null);
+        if (pendingCall != null) {
+            pendingCall.request.cancel(true);
+            pendingCall = null;
+        }
         processMonitor.stop();
         MyApplicationComponent.getInstance().updateServers();
         calls.forEach(Call::clearMemoryJustInCase);
         calls.clear();
+        apiClient.close();
     }
 
     /**
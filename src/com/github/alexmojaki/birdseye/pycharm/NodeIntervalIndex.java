@@ -0,0 +1,113 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.intellij.openapi.editor.RangeMarker;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.function.Predicate;
+
+/**
+ * An interval tree over the current document ranges of the nodes in a call,
+ * used by Call.nodeAtPosition to find the node under the mouse without
+ * scanning every range marker in the document.
+ * <p>
+ * The ranges are sorted by start offset and the tree is implicit in that array:
+ * the root of any slice is its middle element, and maxEnds holds the largest
+ * end offset in the slice rooted at each element, so that whole slices which
+ * end too early can be skipped.
+ * <p>
+ * Range markers move when the document is edited, so an index is only valid
+ * for the document modification stamp it was built at. See Call.nodeAtPosition.
+ */
+class NodeIntervalIndex {
+
+    final long modificationStamp;
+
+    private final Call.Node[] nodes;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] maxEnds;
+
+    NodeIntervalIndex(Collection<Call.Node> allNodes, long modificationStamp) {
+        this.modificationStamp = modificationStamp;
+
+        // Nodes whose range markers have been invalidated by edits are left out
+        Call.Node[] valid = new Call.Node[allNodes.size()];
+        int[] validStarts = new int[valid.length];
+        int[] validEnds = new int[valid.length];
+        int size = 0;
+        for (Call.Node node : allNodes) {
+            RangeMarker rangeMarker = node.rangeMarker();
+            if (rangeMarker == null || !rangeMarker.isValid()) {
+                continue;
+            }
+            valid[size] = node;
+            validStarts[size] = rangeMarker.getStartOffset();
+            validEnds[size] = rangeMarker.getEndOffset();
+            size++;
+        }
+
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(i -> validStarts[i]));
+
+        nodes = new Call.Node[size];
+        starts = new int[size];
+        ends = new int[size];
+        for (int i = 0; i < size; i++) {
+            nodes[i] = valid[order[i]];
+            starts[i] = validStarts[order[i]];
+            ends[i] = validEnds[order[i]];
+        }
+        maxEnds = new int[size];
+        buildMaxEnds(0, size);
+    }
+
+    private int buildMaxEnds(int lo, int hi) {
+        if (lo >= hi) {
+            return Integer.MIN_VALUE;
+        }
+        int mid = (lo + hi) >>> 1;
+        int max = Math.max(ends[mid], Math.max(buildMaxEnds(lo, mid), buildMaxEnds(mid + 1, hi)));
+        maxEnds[mid] = max;
+        return max;
+    }
+
+    /**
+     * Returns the deepest node whose range contains the whole range [from, to]
+     * and which satisfies the filter, or null if there is none.
+     * The filter is only called for nodes deeper than the best one found so far.
+     */
+    @Nullable
+    Call.Node deepestContaining(int from, int to, Predicate<Call.Node> filter) {
+        return deepestContaining(0, nodes.length, from, to, filter, null);
+    }
+
+    private Call.Node deepestContaining(int lo, int hi, int from, int to,
+                                        Predicate<Call.Node> filter, Call.Node best) {
+        if (lo >= hi) {
+            return best;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (maxEnds[mid] < to) {
+            // Nothing in this slice reaches far enough
+            return best;
+        }
+        best = deepestContaining(lo, mid, from, to, filter, best);
+        if (starts[mid] > from) {
+            // This and everything after it starts too late
+            return best;
+        }
+        Call.Node node = nodes[mid];
+        if (ends[mid] >= to
+                && (best == null || node.range.depth > best.range.depth)
+                && filter.test(node)) {
+            best = node;
+        }
+        return deepestContaining(mid + 1, hi, from, to, filter, best);
+    }
+}
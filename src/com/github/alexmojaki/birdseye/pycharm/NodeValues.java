@@ -0,0 +1,228 @@
+package com.github.alexmojaki.birdseye.pycharm;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import gnu.trove.TIntObjectHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.alexmojaki.birdseye.pycharm.Utils.GSON;
+
+/**
+ * The values of all nodes in a call, i.e. node_values in Call.CallData.
+ * <p>
+ * In the JSON this maps the tree index of each node to either its value directly,
+ * or for a node inside loops, an object mapping iteration numbers of the outermost loop
+ * to values or further such objects for inner loops. Here those objects are Levels,
+ * so that looking up a value doesn't need to box keys or convert them to strings.
+ * The values themselves are Values, which are wrapped by Call.NodeValue.
+ * Filled by CallDecoder.
+ */
+class NodeValues {
+
+    /**
+     * The metadata of a value, a JSON object which is usually empty.
+     * Only the keys that the plugin uses are kept.
+     */
+    static class Meta {
+        static final Meta EMPTY = new Meta(-1, false);
+
+        // The len() of the value, or -1 if it's not a collection
+        final int len;
+
+        // True if there are other keys, which matters for isEmpty()
+        private final boolean hasOtherKeys;
+
+        private Meta(int len, boolean hasOtherKeys) {
+            this.len = len;
+            this.hasOtherKeys = hasOtherKeys;
+        }
+
+        static Meta fromJson(JsonObject object) {
+            if (object.size() == 0) {
+                return EMPTY;
+            }
+            JsonElement len = object.get("len");
+            int otherKeys = object.size() - (len == null ? 0 : 1);
+            return of(len == null ? -1 : len.getAsInt(), otherKeys > 0);
+        }
+
+        static Meta of(int len, boolean hasOtherKeys) {
+            if (len < 0 && !hasOtherKeys) {
+                return EMPTY;
+            }
+            return new Meta(len, hasOtherKeys);
+        }
+
+        boolean hasLen() {
+            return len >= 0;
+        }
+
+        boolean isEmpty() {
+            return !hasLen() && !hasOtherKeys;
+        }
+    }
+
+    /**
+     * The value of a node at one point in time. In the JSON this is an array
+     * [repr, type index, meta, children...] where each child is [label, value].
+     * Everything but the children is decoded straight away. The children stay
+     * as JSON until the user expands the value in the inspector: CallDecoder keeps
+     * them as the text of a JSON array, and values created from the children of
+     * another value by fromJson keep the array they came from.
+     */
+    static class Value {
+        final String repr;
+        final int typeIndex;
+        final Meta meta;
+
+        // At most one of these is set, see children()
+        @Nullable
+        private final String childrenJson;
+        @Nullable
+        private final JsonArray array;
+
+        private Value(String repr, int typeIndex, Meta meta,
+                      @Nullable String childrenJson, @Nullable JsonArray array) {
+            this.repr = repr;
+            this.typeIndex = typeIndex;
+            this.meta = meta;
+            this.childrenJson = childrenJson;
+            this.array = array;
+        }
+
+        /**
+         * For CallDecoder. childrenJson is a JSON array of the children, or null if there are none.
+         */
+        static Value decoded(String repr, int typeIndex, Meta meta, @Nullable String childrenJson) {
+            return new Value(repr, typeIndex, meta, childrenJson, null);
+        }
+
+        static Value fromJson(JsonArray arr) {
+            return new Value(
+                    Interning.string(arr.get(0).getAsString()),
+                    arr.get(1).getAsInt(),
+                    Meta.fromJson(arr.get(2).getAsJsonObject()),
+                    null,
+                    arr.size() > 3 ? arr : null);
+        }
+
+        boolean hasChildren() {
+            return childrenJson != null || array != null;
+        }
+
+        /**
+         * Parses the children, each a JSON array [label, value].
+         */
+        List<JsonElement> children() {
+            List<JsonElement> result = new ArrayList<>();
+            if (childrenJson != null) {
+                GSON.fromJson(childrenJson, JsonArray.class).forEach(result::add);
+            } else if (array != null) {
+                for (int i = 3; i < array.size(); i++) {
+                    result.add(array.get(i));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Maps iteration numbers of a loop to either a Value or another Level for an inner loop.
+     */
+    static class Level extends TIntObjectHashMap<Object> {
+    }
+
+    private final Level values = new Level();
+
+    void put(int treeIndex, Object value) {
+        values.put(treeIndex, value);
+    }
+
+    /**
+     * Returns the value of the node with the given tree index if it isn't inside a loop,
+     * otherwise the Level to pass to iteration(). Null if the node has no values.
+     */
+    @Nullable
+    Object get(int treeIndex) {
+        return values.get(treeIndex);
+    }
+
+    /**
+     * Given a Level returned by get() or by this method, returns the value
+     * or Level for the given iteration of the corresponding loop,
+     * or null if there isn't one.
+     */
+    @Nullable
+    static Object iteration(Object level, int iteration) {
+        if (!(level instanceof Level)) {
+            return null;
+        }
+        return ((Level) level).get(iteration);
+    }
+
+    @Nullable
+    static Value asValue(@Nullable Object value) {
+        return value instanceof Value ? (Value) value : null;
+    }
+
+    void clear() {
+        values.clear();
+    }
+
+    /**
+     * A rough estimate of how much memory these values take, see Call.sizeBytes.
+     * Counts a guess at object overhead plus two bytes per character of each string.
+     */
+    long estimateSizeBytes() {
+        return estimateSize(values);
+    }
+
+    private static long estimateSize(Object value) {
+        if (value instanceof Level) {
+            Level level = (Level) value;
+            long total = 64 + 16L * level.capacity();
+            for (Object child : level.getValues()) {
+                total += estimateSize(child);
+            }
+            return total;
+        }
+        if (value instanceof Value) {
+            Value v = (Value) value;
+            long total = 56 + 2L * v.repr.length();
+            if (v.childrenJson != null) {
+                total += 40 + 2L * v.childrenJson.length();
+            }
+            if (v.array != null) {
+                total += estimateSize(v.array);
+            }
+            return total;
+        }
+        return 0;
+    }
+
+    private static long estimateSize(JsonElement element) {
+        if (element.isJsonArray()) {
+            long total = 32;
+            for (JsonElement child : element.getAsJsonArray()) {
+                total += 8 + estimateSize(child);
+            }
+            return total;
+        }
+        if (element.isJsonObject()) {
+            long total = 64;
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                total += 48 + 2L * entry.getKey().length() + estimateSize(entry.getValue());
+            }
+            return total;
+        }
+        if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+            return 56 + 2L * element.getAsString().length();
+        }
+        return 24;
+    }
+}
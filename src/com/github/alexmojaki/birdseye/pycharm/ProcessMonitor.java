@@ -74,7 +74,7 @@ class ProcessMonitor {
 
             // This should generally only happen when the project is starting up.
             // Check again in 1 second.
-            projectComponent.timer.schedule(new TimerTask() {
+            projectComponent.schedule(new TimerTask() {
                 @Override
                 public void run() {
                     start();
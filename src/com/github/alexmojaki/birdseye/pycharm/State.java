@@ -8,4 +8,16 @@ public class State {
     public String port = "7777";
     public String dbUrl = "";
     public String serverUrl = "http://localhost:7777";
+
+    // Connections to the server, see ApiClient
+    public int connectTimeoutMillis = 5000;
+    public int readTimeoutMillis = 60000;
+    public int maxConnectionsPerRoute = 4;
+
+    // Maximum total size of the calls stored on disk, see CallCache
+    public int callCacheSizeMb = 500;
+
+    // Rough maximum total size of the data of open calls kept in memory,
+    // see MyProjectComponent.enforceMemoryBudget
+    public int openCallsMemoryMb = 300;
 }
@@ -2,30 +2,49 @@ package com.github.alexmojaki.birdseye.pycharm;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
 import com.intellij.codeInsight.daemon.impl.EditorTracker;
 import com.intellij.lang.ASTNode;
+import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diff.DiffColors;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.colors.EditorColorsManager;
 import com.intellij.openapi.editor.ex.DocumentEx;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.TextRange;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
 import com.intellij.psi.PsiRecursiveElementWalkingVisitor;
 import com.intellij.psi.tree.TokenSet;
 import com.jetbrains.python.PyTokenTypes;
 import com.jetbrains.python.psi.PyFunction;
 import com.jetbrains.python.psi.PyStatement;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -37,6 +56,11 @@ public class Utils {
 
     static final Gson GSON = new GsonBuilder().create();
 
+    /**
+     * Runs tasks later in the UI thread, e.g. to handle the results of ApiClient's async methods.
+     */
+    static final Executor UI_EXECUTOR = runnable -> ApplicationManager.getApplication().invokeLater(runnable);
+
     private Utils() {
     }
 
@@ -62,25 +86,176 @@ public class Utils {
     }
 
     /**
-     * Returns a hash of the body of a function (PSI element)
+     * A function's hash together with the modification stamp of its file when it was computed.
+     * Stored on the PyFunction under FUNCTION_HASH by hashFunction.
+     */
+    private static class CachedHash {
+        final long modificationStamp;
+        final String hash;
+
+        CachedHash(long modificationStamp, String hash) {
+            this.modificationStamp = modificationStamp;
+            this.hash = hash;
+        }
+    }
+
+    private static final Key<CachedHash> FUNCTION_HASH = Key.create("BIRDSEYE_FUNCTION_HASH");
+
+    /**
+     * Returns a hash of the body of a function (PSI element).
+     * <p>
+     * This is called for every function in every open editor each time
+     * MyProjectComponent.checkHashes runs, as well as by EyeLineMarkerProvider,
+     * so the result is cached until the file containing the function changes.
+     * Must be called in a read action.
      */
     @NotNull
     static String hashFunction(PyFunction function) {
-        return DigestUtils.sha256Hex(getFunctionText(function));
+        long modificationStamp = function.getContainingFile().getModificationStamp();
+        CachedHash cached = function.getUserData(FUNCTION_HASH);
+        if (cached != null && cached.modificationStamp == modificationStamp) {
+            return cached.hash;
+        }
+        String hash = streamHashFunction(function);
+        function.putUserData(FUNCTION_HASH, new CachedHash(modificationStamp, hash));
+        return hash;
+    }
+
+    /**
+     * Returns the hashes of all named functions (i.e. not lambdas) in the file.
+     * Must be called in a read action, which may be cancelled.
+     */
+    static Set<String> hashFunctions(PsiFile psiFile) {
+        return hashFunctions(psiFile, Utils::hashFunction);
+    }
+
+    /**
+     * Like hashFunctions, but doesn't cache hashes on the PSI, which is for
+     * FunctionHashIndex where the PSI is built just for indexing and thrown away.
+     */
+    static Set<String> hashFunctionsUncached(PsiFile psiFile) {
+        return hashFunctions(psiFile, Utils::streamHashFunction);
+    }
+
+    private static Set<String> hashFunctions(PsiFile psiFile, Function<PyFunction, String> hasher) {
+        Set<String> hashes = new HashSet<>();
+        new PsiRecursiveElementWalkingVisitor() {
+            @Override
+            protected void elementFinished(PsiElement element) {
+                ProgressManager.checkCanceled();
+                if (!(element instanceof PyFunction)) {
+                    return;
+                }
+                PyFunction function = (PyFunction) element;
+                if (function.getNameIdentifier() == null) {
+                    return;
+                }
+
+                hashes.add(hasher.apply(function));
+            }
+        }.visitElement(psiFile);
+        return hashes;
     }
 
     private static final TokenSet INSIGNIFICANT_TOKENS = TokenSet.orSet(
             PyTokenTypes.WHITESPACE_OR_LINEBREAK,
             TokenSet.create(PyTokenTypes.END_OF_LINE_COMMENT));
 
+    /**
+     * Returns the same as DigestUtils.sha256Hex(getFunctionText(function)), but encodes
+     * the characters of the file straight into the digest instead of copying the text
+     * of the function into strings first. CheckFunctionHashesAction compares the two.
+     */
+    @NotNull
+    static String streamHashFunction(PyFunction function) {
+        TextRange range = getFunctionTextRange(function);
+        CharSequence contents = function.getContainingFile().getViewProvider().getContents();
+
+        // Like the trim() in getFunctionText
+        int start = range.getStartOffset();
+        int end = range.getEndOffset();
+        while (start < end && contents.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && contents.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        return HASHERS.get().hash(contents, start, end);
+    }
+
+    private static final ThreadLocal<FunctionHasher> HASHERS = ThreadLocal.withInitial(FunctionHasher::new);
+
+    /**
+     * The state needed by streamHashFunction, kept per thread so that hashing
+     * every function in a file doesn't allocate anything but the result.
+     * Everything is reset at the start of hash() in case a previous call was interrupted.
+     */
+    private static class FunctionHasher {
+        // Replacing bad characters with '?' is what String.getBytes does
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final MessageDigest digest = DigestUtils.getSha256Digest();
+        private final CharBuffer chars = CharBuffer.allocate(1024);
+        private final ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+        String hash(CharSequence contents, int start, int end) {
+            encoder.reset();
+            digest.reset();
+            chars.clear();
+            bytes.clear();
+
+            int position = start;
+            CoderResult result;
+            while (true) {
+                while (chars.hasRemaining() && position < end) {
+                    chars.put(contents.charAt(position++));
+                }
+                chars.flip();
+                boolean endOfInput = position == end;
+                do {
+                    result = encoder.encode(chars, bytes, endOfInput);
+                    drainBytes();
+                } while (result.isOverflow());
+                if (endOfInput) {
+                    break;
+                }
+
+                // Keeps a high surrogate whose pair is in the next chunk
+                chars.compact();
+            }
+            do {
+                result = encoder.flush(bytes);
+                drainBytes();
+            } while (result.isOverflow());
+            return Hex.encodeHexString(digest.digest());
+        }
+
+        private void drainBytes() {
+            bytes.flip();
+            digest.update(bytes);
+            bytes.clear();
+        }
+    }
+
     /**
      * Returns the body of a function (PSI element), from the def token
      * until the last significant character of the last statement.
      */
     static String getFunctionText(PyFunction function) {
         int absoluteFunctionStart = function.getTextRange().getStartOffset();
-        int start = getFunctionStart(function)
-                - absoluteFunctionStart;
+        TextRange range = getFunctionTextRange(function).shiftRight(-absoluteFunctionStart);
+        String text = range.substring(function.getText());
+        assert text.startsWith("def");
+        return text.trim();
+    }
+
+    /**
+     * Returns the range in the file of the text returned by getFunctionText, before trimming.
+     */
+    private static TextRange getFunctionTextRange(PyFunction function) {
+        int start = getFunctionStart(function);
 
         // Find the last single-part statement, which may be nested inside
         // multipart statements (e.g. loops)
@@ -102,11 +277,8 @@ public class Utils {
                 lastStatement[0].getNode().getChildren(TokenSet.ANY),
                 node -> !INSIGNIFICANT_TOKENS.contains(node.getElementType())));
 
-        int end = lastNode.getTextRange().getEndOffset()
-                - absoluteFunctionStart;
-        String text = function.getText().substring(start, end);
-        assert text.startsWith("def");
-        return text.trim();
+        int end = lastNode.getTextRange().getEndOffset();
+        return new TextRange(start, end);
     }
 
     /**
@@ -121,6 +293,23 @@ public class Utils {
                 .getStartOffset();
     }
 
+    /**
+     * Makes the IDE recalculate line markers, i.e. the eye icons and loop arrows,
+     * in the files of the given documents only. Restarting the whole DaemonCodeAnalyzer
+     * would rerun every inspection in every open file.
+     * Must be called in a read action.
+     */
+    static void restartAnalysis(Project project, Collection<Document> documents) {
+        DaemonCodeAnalyzer analyzer = DaemonCodeAnalyzer.getInstance(project);
+        PsiDocumentManager psiDocumentManager = PsiDocumentManager.getInstance(project);
+        for (Document document : new HashSet<>(documents)) {
+            PsiFile psiFile = psiDocumentManager.getPsiFile(document);
+            if (psiFile != null) {
+                analyzer.restart(psiFile);
+            }
+        }
+    }
+
     /**
      * Returns the list of active editors for this project, copied to allow changes.
      * Must be called in the ED thread.